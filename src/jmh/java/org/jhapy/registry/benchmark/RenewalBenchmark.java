@@ -0,0 +1,236 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.benchmark;
+
+import ch.qos.logback.classic.Level;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.DataCenterInfo;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.MyDataCenterInfo;
+import com.netflix.appinfo.MyDataCenterInstanceConfig;
+import com.netflix.discovery.DefaultEurekaClientConfig;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.discovery.shared.transport.EurekaHttpResponse;
+import com.netflix.eureka.DefaultEurekaServerConfig;
+import com.netflix.eureka.EurekaServerConfig;
+import com.netflix.eureka.cluster.HttpReplicationClient;
+import com.netflix.eureka.cluster.PeerEurekaNode;
+import com.netflix.eureka.cluster.PeerEurekaNodes;
+import com.netflix.eureka.cluster.protocol.ReplicationInstance;
+import com.netflix.eureka.cluster.protocol.ReplicationInstanceResponse;
+import com.netflix.eureka.cluster.protocol.ReplicationList;
+import com.netflix.eureka.cluster.protocol.ReplicationListResponse;
+import com.netflix.eureka.registry.AbstractInstanceRegistry;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistryImpl;
+import com.netflix.eureka.registry.ResponseCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import org.jhapy.registry.config.RegistryProperties;
+import org.jhapy.registry.eureka.RegistryInstanceRegistry;
+import org.jhapy.registry.eureka.RegistryMetrics;
+import org.jhapy.registry.eureka.RenewalBatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.netflix.eureka.server.InstanceRegistry;
+import org.springframework.cloud.netflix.eureka.server.InstanceRegistryProperties;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRenewedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Lease renewals per second of the registry, in process, for each renewal path:
+ * <ul>
+ * <li><code>spring</code>: the Spring Cloud instance registry, the renewal before this registry
+ * replaced it</li>
+ * <li><code>registry</code>: {@link RegistryInstanceRegistry#renew}, a heartbeat going through
+ * Jersey</li>
+ * <li><code>fast-path</code>: {@link RenewalBatcher#renew}, a heartbeat answered by the renewal
+ * fast path, replicated and published by the batches</li>
+ * </ul>
+ * The registry has one peer, whose replication client acknowledges the batches right away, and
+ * the {@link RegistryMetrics} listen to its renewal events. One thread runs per core: the
+ * renewals per second per core are the score divided by the number of cores. The HTTP side,
+ * authentication included, is measured by {@link RenewalLoadHarness}.
+ * <p>
+ * Run with <code>mvn -Pbenchmark compile exec:exec</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(Threads.MAX)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenewalBenchmark {
+
+  private static final int APPLICATIONS = 50;
+
+  @Param({"100", "2000"})
+  public int instances;
+
+  @Param({"spring", "registry", "fast-path"})
+  public String path;
+
+  private boolean fastPath;
+  private InstanceRegistry registry;
+  private RegistryInstanceRegistry registryInstanceRegistry;
+  private RenewalBatcher renewalBatcher;
+  private PeerEurekaNode peer;
+  private GenericApplicationContext context;
+  private String[] appNames;
+  private String[] ids;
+
+  @Setup
+  public void setUp() {
+    ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
+        .setLevel(Level.WARN);
+    // The Eureka monitors read the instance info of this singleton
+    new ApplicationInfoManager(new MyDataCenterInstanceConfig(),
+        InstanceInfo.Builder.newBuilder().setAppName("BENCHMARK").setHostName("localhost")
+            .setDataCenterInfo(new MyDataCenterInfo(DataCenterInfo.Name.MyOwn)).build(),
+        null);
+    EurekaServerConfig serverConfig = new DefaultEurekaServerConfig();
+    EurekaClientConfig clientConfig = new DefaultEurekaClientConfig();
+    EurekaClient eurekaClient = proxy(EurekaClient.class, null);
+
+    fastPath = "fast-path".equals(path);
+    if ("spring".equals(path)) {
+      registry = new InstanceRegistry(serverConfig, clientConfig, null, eurekaClient, 1, 1);
+    } else {
+      registryInstanceRegistry = new RegistryInstanceRegistry(serverConfig, clientConfig, null,
+          eurekaClient, new InstanceRegistryProperties());
+      registry = registryInstanceRegistry;
+    }
+    setField(AbstractInstanceRegistry.class, "responseCache", proxy(ResponseCache.class, null));
+    peer = new PeerEurekaNode(registry, "peer", "http://peer:8761/eureka/",
+        proxy(HttpReplicationClient.class, RenewalBenchmark::acknowledge), serverConfig);
+    setField(PeerAwareInstanceRegistryImpl.class, "peerEurekaNodes",
+        new PeerEurekaNodes(registry, serverConfig, clientConfig, null, null) {
+          @Override
+          public List<PeerEurekaNode> getPeerEurekaNodes() {
+            return Collections.singletonList(peer);
+          }
+
+          @Override
+          public boolean isThisMyUrl(String url) {
+            return false;
+          }
+        });
+
+    RegistryMetrics registryMetrics = new RegistryMetrics(registry, null);
+    registryMetrics.bindTo(new SimpleMeterRegistry());
+    context = new GenericApplicationContext();
+    context.addApplicationListener(new ApplicationListener<EurekaInstanceRenewedEvent>() {
+      @Override
+      public void onApplicationEvent(EurekaInstanceRenewedEvent event) {
+        registryMetrics.onInstanceRenewed(event);
+      }
+    });
+    context.refresh();
+    registry.setApplicationContext(context);
+
+    appNames = new String[instances];
+    ids = new String[instances];
+    for (int i = 0; i < instances; i++) {
+      appNames[i] = "APP-" + i % APPLICATIONS;
+      ids[i] = "instance-" + i;
+      registry.register(InstanceInfo.Builder.newBuilder().setAppName(appNames[i])
+          .setInstanceId(ids[i]).setHostName(ids[i]).setStatus(InstanceInfo.InstanceStatus.UP)
+          .build(), 90, false);
+    }
+    renewalBatcher = new RenewalBatcher(new RegistryProperties());
+    renewalBatcher.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    renewalBatcher.stop();
+    peer.shutDown();
+    context.close();
+  }
+
+  /**
+   * Instances renewed by a benchmark thread, spread over the registry.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int next;
+
+    @Setup
+    public void setUp(RenewalBenchmark benchmark) {
+      next = ThreadLocalRandom.current().nextInt(benchmark.instances);
+    }
+  }
+
+  @Benchmark
+  public boolean renew(Cursor cursor) {
+    int i = cursor.next;
+    cursor.next = i + 1 == instances ? 0 : i + 1;
+    if (fastPath) {
+      return renewalBatcher.renew(registryInstanceRegistry, appNames[i], ids[i]);
+    }
+    return registry.renew(appNames[i], ids[i], false);
+  }
+
+  private void setField(Class<?> owner, String name, Object value) {
+    Field field = ReflectionUtils.findField(owner, name);
+    ReflectionUtils.makeAccessible(field);
+    ReflectionUtils.setField(field, registry, value);
+  }
+
+  private static Object acknowledge(String method, Object[] args) {
+    if ("submitBatchUpdates".equals(method)) {
+      ReplicationListResponse response = new ReplicationListResponse();
+      for (ReplicationInstance ignored : ((ReplicationList) args[0]).getReplicationList()) {
+        response.addResponse(new ReplicationInstanceResponse(200, null));
+      }
+      return EurekaHttpResponse.anEurekaHttpResponse(200, response).build();
+    }
+    return "shutdown".equals(method) ? null : EurekaHttpResponse.status(200);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, BiFunction<String, Object[], Object> answer) {
+    return (T) Proxy.newProxyInstance(RenewalBenchmark.class.getClassLoader(),
+        new Class<?>[]{type},
+        (instance, method, args) -> answer == null ? null : answer.apply(method.getName(), args));
+  }
+}
@@ -25,6 +25,7 @@ import java.util.Collection;
 import org.apache.commons.lang3.StringUtils;
 import org.jhapy.commons.config.AppProperties;
 import org.jhapy.registry.config.ConfigServerConfig;
+import org.jhapy.registry.config.RegistryProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -36,6 +37,7 @@ import org.springframework.cloud.config.server.EnableConfigServer;
 import org.springframework.cloud.netflix.eureka.server.EnableEurekaServer;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.jhapy.commons.utils.DefaultProfileUtil;
 import org.jhapy.commons.utils.SpringProfileConstants;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
@@ -46,7 +48,9 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 @EnableConfigServer
 @EnableEurekaServer
 @EnableDiscoveryClient
-@EnableConfigurationProperties({AppProperties.class, ConfigServerConfig.class})
+@EnableScheduling
+@EnableConfigurationProperties({AppProperties.class, ConfigServerConfig.class,
+    RegistryProperties.class})
 public class Application implements InitializingBean {
 
   private static final Logger logger = LoggerFactory.getLogger(Application.class);
@@ -18,6 +18,7 @@
 
 package org.jhapy.registry.config;
 
+import org.jhapy.registry.security.CachingPasswordEncoder;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.boot.actuate.health.HealthEndpoint;
@@ -36,7 +37,6 @@ import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.User.UserBuilder;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.provisioning.InMemoryUserDetailsManager;
 
 @EnableWebSecurity
@@ -44,13 +44,16 @@ public class ActuatorSecurity {
 
   private Environment env;
 
-  public ActuatorSecurity(Environment env) {
+  private final RegistryProperties registryProperties;
+
+  public ActuatorSecurity(Environment env, RegistryProperties registryProperties) {
     this.env = env;
+    this.registryProperties = registryProperties;
   }
 
   @Bean
-  public PasswordEncoder passwordEncoder() {
-    return new BCryptPasswordEncoder();
+  public CachingPasswordEncoder passwordEncoder() {
+    return new CachingPasswordEncoder(new BCryptPasswordEncoder(), registryProperties);
   }
 
   @Bean
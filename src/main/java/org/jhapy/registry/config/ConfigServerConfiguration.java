@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.config;
+
+import org.jhapy.registry.configserver.CachingEnvironmentRepository;
+import org.jhapy.registry.configserver.ConfigPayloadFilter;
+import org.jhapy.registry.configserver.CachingTextEncryptorLocator;
+import org.jhapy.registry.configserver.ConfigChangeWatcher;
+import org.jhapy.registry.configserver.ConfigRepositoryFetcher;
+import org.jhapy.registry.configserver.DecryptionCache;
+import org.jhapy.registry.configserver.EnvironmentCache;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.config.server.config.ConfigServerProperties;
+import org.springframework.cloud.config.server.encryption.CipherEnvironmentEncryptor;
+import org.springframework.cloud.config.server.encryption.SingleTextEncryptorLocator;
+import org.springframework.cloud.config.server.encryption.TextEncryptorLocator;
+import org.springframework.cloud.config.server.environment.CompositeEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * Replaces parts of the Spring Cloud Config server setup.
+ */
+@Configuration
+public class ConfigServerConfiguration {
+
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config.cache", name = "enabled",
+      matchIfMissing = true)
+  public EnvironmentCache environmentCache(RegistryProperties registryProperties) {
+    return new EnvironmentCache(registryProperties);
+  }
+
+  /**
+   * Put the {@link EnvironmentCache} in front of the composite environment repository used by
+   * the config server endpoints.
+   */
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config.cache", name = "enabled",
+      matchIfMissing = true)
+  public static BeanPostProcessor cachingEnvironmentRepositoryPostProcessor(
+      ObjectProvider<EnvironmentCache> environmentCache,
+      ObjectProvider<ConfigRepositoryFetcher> configRepositoryFetcher) {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof CompositeEnvironmentRepository) {
+          return new CachingEnvironmentRepository((CompositeEnvironmentRepository) bean,
+              environmentCache.getObject(), configRepositoryFetcher.getIfAvailable());
+        }
+        return bean;
+      }
+    };
+  }
+
+  /**
+   * Serve the environments of the {@link EnvironmentCache} without serializing them again.
+   */
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config", name = {"cache.enabled", "payload.enabled"},
+      matchIfMissing = true)
+  public ConfigPayloadFilter configPayloadFilter(EnvironmentCache environmentCache,
+      RegistryProperties registryProperties, ConfigServerProperties configServerProperties) {
+    return new ConfigPayloadFilter(environmentCache, registryProperties,
+        configServerProperties.getPrefix());
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config.fetch", name = "enabled",
+      matchIfMissing = true)
+  public ConfigRepositoryFetcher configRepositoryFetcher(
+      ObjectProvider<EnvironmentRepository> environmentRepositories, TaskScheduler taskScheduler,
+      RegistryProperties registryProperties) {
+    return new ConfigRepositoryFetcher(environmentRepositories, taskScheduler,
+        registryProperties);
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config.decrypt", name = "enabled",
+      matchIfMissing = true)
+  public DecryptionCache decryptionCache(RegistryProperties registryProperties) {
+    return new DecryptionCache(registryProperties);
+  }
+
+  /**
+   * Rebuild the environment encryptor of the config server around a {@link DecryptionCache}, the
+   * same way Spring Cloud picks its text encryptor locator. The encryption endpoints keep the
+   * original locator.
+   */
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config.decrypt", name = "enabled",
+      matchIfMissing = true)
+  public static BeanPostProcessor cachingEnvironmentEncryptorPostProcessor(
+      ObjectProvider<DecryptionCache> decryptionCache,
+      ObjectProvider<TextEncryptorLocator> textEncryptorLocator,
+      ObjectProvider<TextEncryptor> textEncryptor) {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof CipherEnvironmentEncryptor) {
+          TextEncryptorLocator locator = textEncryptorLocator
+              .getIfAvailable(() -> new SingleTextEncryptorLocator(textEncryptor.getObject()));
+          return new CipherEnvironmentEncryptor(
+              new CachingTextEncryptorLocator(locator, decryptionCache.getObject()));
+        }
+        return bean;
+      }
+    };
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.config.watch", name = "enabled",
+      matchIfMissing = true)
+  public ConfigChangeWatcher configChangeWatcher(
+      ObjectProvider<EnvironmentRepository> environmentRepositories, TaskScheduler taskScheduler,
+      RegistryProperties registryProperties,
+      ObjectProvider<ConfigRepositoryFetcher> configRepositoryFetcher) {
+    return new ConfigChangeWatcher(environmentRepositories, taskScheduler, registryProperties,
+        configRepositoryFetcher.getIfAvailable());
+  }
+}
@@ -18,18 +18,16 @@
 
 package org.jhapy.registry.config;
 
-import java.net.Inet4Address;
-import java.net.InetAddress;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import java.net.InterfaceAddress;
-import java.net.NetworkInterface;
-import java.net.URL;
-import java.net.UnknownHostException;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.net.util.SubnetUtils;
 import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.dns.DnsCache;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.cloud.commons.util.IdUtils;
 import org.springframework.cloud.commons.util.InetUtils;
 import org.springframework.cloud.netflix.eureka.EurekaClientConfigBean;
@@ -49,6 +47,9 @@ public class DockerEurekaClientConfiguration implements
 
   private final ConfigurableEnvironment env;
 
+  private volatile long addressDiscoveryTime;
+  private volatile int addressDiscoveryAttempts;
+
   public DockerEurekaClientConfiguration(ConfigurableEnvironment env) {
     this.env = env;
   }
@@ -67,7 +68,7 @@ public class DockerEurekaClientConfiguration implements
   @Bean
   @Primary
   public EurekaInstanceConfigBean eurekaInstanceConfigBean(InetUtils inetUtils,
-      ManagementMetadataProvider managementMetadataProvider) {
+      ManagementMetadataProvider managementMetadataProvider, DnsCache dnsCache) {
     String loggerPrefix = getLoggerPrefix("eurekaInstanceConfigBean");
 
     String hostname = env.getProperty("eureka.instance.hostname");
@@ -133,7 +134,6 @@ public class DockerEurekaClientConfiguration implements
 
     this.setupJmxPort(instance, jmxPort);
 
-    EurekaInstanceConfigBean result = null;
     SubnetUtils subnet = null;
     if (env.getProperty("eureka.instance.network") != null) {
       String specifiedNetwork = env.getProperty("eureka.instance.network");
@@ -141,84 +141,40 @@ public class DockerEurekaClientConfiguration implements
       subnet = new SubnetUtils(specifiedNetwork);
     }
 
-    int nbLoop = 1;
-    while (result == null & nbLoop <= 10) {
-      logger().info(loggerPrefix + "Loop " + nbLoop++);
-      try {
-        List<String> servers = eurekaClientConfigBean(env).getEurekaServerServiceUrls(null);
-        Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
-
-        external_loop:
-        for (NetworkInterface networkInterface : Collections.list(networkInterfaces)) {
-          for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
-            if (interfaceAddress.getAddress() instanceof Inet4Address) {
-              logger().info(loggerPrefix +
-                      "Interface {}: {}/{}",
-                  networkInterface.getName(),
-                  interfaceAddress.getAddress(),
-                  interfaceAddress.getNetworkPrefixLength()
-              );
-
-              if (subnet != null) {
-                if (subnet.getInfo().isInRange(interfaceAddress.getAddress().getHostAddress())) {
-                  logger().info(loggerPrefix + "Interface match with specified network");
-                  result = createEurekaInstanceConfigBean(inetUtils, instance,
-                      isManagementSecuredPortEnabled, managementContextPath, interfaceAddress);
-                  break external_loop;
-                }
-              } else {
-                SubnetUtils addressSubnet = new SubnetUtils(
-                    interfaceAddress.getAddress().getHostAddress() +
-                        "/" + interfaceAddress.getNetworkPrefixLength()
-                );
-                logger().info(loggerPrefix + servers.size() + " servers to check");
-                for (String server : servers) {
-                  URL serverUrl = new URL(server);
-                  try {
-                    InetAddress eurekaServerAddress = InetAddress.getByName(serverUrl.getHost());
-                    boolean matches = addressSubnet.getInfo()
-                        .isInRange(eurekaServerAddress.getHostAddress());
-                    logger().info(loggerPrefix + "Testing server {} ({}): {}", server,
-                        eurekaServerAddress.getHostAddress(), matches);
-                    if (matches) {
-                      logger().info(loggerPrefix +
-                              "Found Interface {}: {} ({})",
-                          networkInterface.getName(),
-                          interfaceAddress.getAddress().getHostName(),
-                          interfaceAddress.getAddress().getHostAddress()
-                      );
-                      result = createEurekaInstanceConfigBean(inetUtils, instance,
-                          isManagementSecuredPortEnabled, managementContextPath, interfaceAddress);
-                      break external_loop;
-                    }
-                  } catch (UnknownHostException e) {
-                    logger().warn(loggerPrefix + "Host not found on interface");
-                  }
-                }
-              }
-            } else {
-              logger().info(loggerPrefix +
-                      "Skipping IPv6 from Interface {}: {}/{}",
-                  networkInterface.getName(),
-                  interfaceAddress.getAddress(),
-                  interfaceAddress.getNetworkPrefixLength()
-              );
-            }
-          }
-        }
-      } catch (Exception e) {
-        logger().error(loggerPrefix + "Error while detecting eureka client address", e);
-      }
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
-      }
+    RegistryProperties.Discovery discovery = Binder.get(env)
+        .bindOrCreate("registry.discovery", RegistryProperties.Discovery.class);
+    EurekaClientAddressResolver resolver = new EurekaClientAddressResolver(discovery,
+        dnsCache);
+    long start = System.nanoTime();
+    InterfaceAddress interfaceAddress;
+    try {
+      interfaceAddress = resolver
+          .resolve(subnet, eurekaClientConfigBean(env).getEurekaServerServiceUrls(null));
+    } finally {
+      addressDiscoveryTime = System.nanoTime() - start;
+      addressDiscoveryAttempts = resolver.getAttempts();
     }
-    if (result == null) {
-      logger().error(loggerPrefix + "Unable to getEurekaInstance, exiting");
-      System.exit(-1);
-    }
-    return result;
+    logger().info(loggerPrefix + "Eureka client address found in {} ms, {} attempt(s)",
+        TimeUnit.NANOSECONDS.toMillis(addressDiscoveryTime), addressDiscoveryAttempts);
+    return createEurekaInstanceConfigBean(inetUtils, instance, isManagementSecuredPortEnabled,
+        managementContextPath, interfaceAddress);
+  }
+
+  /**
+   * Expose the time spent finding the Eureka client address during startup.
+   */
+  @Bean
+  public MeterBinder eurekaAddressDiscoveryMetrics() {
+    return registry -> {
+      TimeGauge.builder("registry.startup.address.discovery", this, TimeUnit.NANOSECONDS,
+          config -> config.addressDiscoveryTime)
+          .description("Time spent finding the network interface facing the Eureka servers")
+          .register(registry);
+      Gauge.builder("registry.startup.address.discovery.attempts", this,
+          config -> config.addressDiscoveryAttempts)
+          .description("Attempts needed to find the network interface facing the Eureka servers")
+          .register(registry);
+    };
   }
 
   private void setupJmxPort(EurekaInstanceConfigBean instance, Integer jmxPort) {
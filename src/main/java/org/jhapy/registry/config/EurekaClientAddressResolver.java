@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.config;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.MalformedURLException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.net.util.SubnetUtils;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.dns.DnsCache;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Finds the local IPv4 interface address to advertise to Eureka: the one in the configured network
+ * when <code>eureka.instance.network</code> is set, otherwise the one sharing a subnet with a
+ * Eureka server.
+ * <p>
+ * Each attempt resolves the server host names in parallel through the {@link DnsCache}, bounded by
+ * a timeout, then checks all the interfaces concurrently. Failed attempts are retried with an
+ * exponential backoff and jitter, as the Docker DNS and networks may not be ready when the
+ * container starts.
+ */
+class EurekaClientAddressResolver implements HasLogger {
+
+  private final RegistryProperties.Discovery properties;
+  private final DnsCache dnsCache;
+
+  private int attempts;
+
+  EurekaClientAddressResolver(RegistryProperties.Discovery properties, DnsCache dnsCache) {
+    this.properties = properties;
+    this.dnsCache = dnsCache;
+  }
+
+  /**
+   * @param network the network to pick the address from, <code>null</code> to match the servers
+   * @param serverUrls the Eureka server URLs
+   * @return the matching interface address
+   * @throws IllegalStateException if no interface matched after the configured attempts
+   */
+  InterfaceAddress resolve(SubnetUtils network, List<String> serverUrls) {
+    String loggerPrefix = getLoggerPrefix("resolve");
+    Set<String> hosts = new LinkedHashSet<>();
+    for (String serverUrl : serverUrls) {
+      try {
+        hosts.add(new URL(serverUrl).getHost());
+      } catch (MalformedURLException e) {
+        logger().warn(loggerPrefix + "Ignoring malformed Eureka server URL {}", serverUrl);
+      }
+    }
+
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("eureka-address-");
+    threadFactory.setDaemon(true);
+    ExecutorService executor = Executors.newCachedThreadPool(threadFactory);
+    try {
+      long backoff = properties.getInitialBackoff().toMillis();
+      for (attempts = 1; attempts <= properties.getMaxAttempts(); attempts++) {
+        try {
+          InterfaceAddress result = attempt(network, hosts, executor);
+          if (result != null) {
+            return result;
+          }
+          logger().info(loggerPrefix + "No matching interface, attempt {}/{}", attempts,
+              properties.getMaxAttempts());
+        } catch (SocketException | RuntimeException e) {
+          logger().error(loggerPrefix + "Error while detecting eureka client address", e);
+        }
+        if (attempts < properties.getMaxAttempts()) {
+          Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+          backoff = Math.min(backoff * 2, properties.getMaxBackoff().toMillis());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+    throw new IllegalStateException("Unable to find the Eureka client address after "
+        + Math.min(attempts, properties.getMaxAttempts()) + " attempts");
+  }
+
+  /**
+   * @return the number of attempts of the last {@link #resolve} call
+   */
+  int getAttempts() {
+    return Math.min(attempts, properties.getMaxAttempts());
+  }
+
+  private InterfaceAddress attempt(SubnetUtils network, Set<String> hosts,
+      ExecutorService executor) throws SocketException {
+    String loggerPrefix = getLoggerPrefix("attempt");
+    List<String> serverAddresses =
+        network == null ? lookup(hosts) : Collections.emptyList();
+    if (network == null) {
+      logger().info(loggerPrefix + "Eureka servers {} resolved to {}", hosts, serverAddresses);
+      if (serverAddresses.isEmpty()) {
+        return null;
+      }
+    }
+
+    List<CompletableFuture<InterfaceAddress>> matches = new ArrayList<>();
+    for (NetworkInterface networkInterface : Collections
+        .list(NetworkInterface.getNetworkInterfaces())) {
+      matches.add(CompletableFuture
+          .supplyAsync(() -> match(networkInterface, network, serverAddresses), executor));
+    }
+    // Keep the enumeration order so the choice does not depend on the thread timing
+    for (CompletableFuture<InterfaceAddress> match : matches) {
+      InterfaceAddress interfaceAddress = match.join();
+      if (interfaceAddress != null) {
+        return interfaceAddress;
+      }
+    }
+    return null;
+  }
+
+  private List<String> lookup(Set<String> hosts) {
+    String loggerPrefix = getLoggerPrefix("lookup");
+    long timeout = properties.getResolveTimeout().toMillis();
+    List<CompletableFuture<List<InetAddress>>> lookups = new ArrayList<>();
+    for (String host : hosts) {
+      lookups.add(dnsCache.resolveAsync(host)
+          .completeOnTimeout(Collections.emptyList(), timeout, TimeUnit.MILLISECONDS)
+          .exceptionally(e -> {
+            logger().warn(loggerPrefix + "Host {} not found: {}", host, e.getMessage());
+            return Collections.emptyList();
+          }));
+    }
+    List<String> addresses = new ArrayList<>();
+    for (CompletableFuture<List<InetAddress>> lookup : lookups) {
+      for (InetAddress address : lookup.join()) {
+        if (address instanceof Inet4Address) {
+          addresses.add(address.getHostAddress());
+        }
+      }
+    }
+    return addresses;
+  }
+
+  private InterfaceAddress match(NetworkInterface networkInterface, SubnetUtils network,
+      List<String> serverAddresses) {
+    String loggerPrefix = getLoggerPrefix("match");
+    for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+      if (!(interfaceAddress.getAddress() instanceof Inet4Address)) {
+        logger().debug(loggerPrefix + "Skipping IPv6 from Interface {}: {}/{}",
+            networkInterface.getName(), interfaceAddress.getAddress(),
+            interfaceAddress.getNetworkPrefixLength());
+        continue;
+      }
+      String hostAddress = interfaceAddress.getAddress().getHostAddress();
+      logger().info(loggerPrefix + "Interface {}: {}/{}", networkInterface.getName(),
+          hostAddress, interfaceAddress.getNetworkPrefixLength());
+      if (network != null) {
+        if (network.getInfo().isInRange(hostAddress)) {
+          logger().info(loggerPrefix + "Interface match with specified network");
+          return interfaceAddress;
+        }
+        continue;
+      }
+      SubnetUtils.SubnetInfo addressSubnet;
+      try {
+        addressSubnet = new SubnetUtils(
+            hostAddress + "/" + interfaceAddress.getNetworkPrefixLength()).getInfo();
+      } catch (IllegalArgumentException e) {
+        logger().debug(loggerPrefix + "Skipping {}: {}", hostAddress, e.getMessage());
+        continue;
+      }
+      for (String serverAddress : serverAddresses) {
+        if (addressSubnet.isInRange(serverAddress)) {
+          logger().info(loggerPrefix + "Found Interface {}: {} matching server {}",
+              networkInterface.getName(), hostAddress, serverAddress);
+          return interfaceAddress;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.config;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.eureka.EurekaServerConfig;
+import com.netflix.eureka.cluster.PeerEurekaNodes;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import com.netflix.eureka.resources.ServerCodecs;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Collections;
+import org.jhapy.registry.dns.DnsCache;
+import org.jhapy.registry.eureka.RegistryInstanceRegistry;
+import org.jhapy.registry.eureka.RegistryPeerEurekaNodes;
+import org.jhapy.registry.eureka.RenewalBatcher;
+import org.jhapy.registry.eureka.RenewalFastPathFilter;
+import org.jhapy.registry.eureka.ReplicationDecompressionFilter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.BeanDefinitionRegistryPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.cloud.netflix.eureka.server.ReplicationClientAdditionalFilters;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.security.authentication.AuthenticationManager;
+
+/**
+ * Replaces parts of the Spring Cloud Eureka server setup.
+ */
+@Configuration
+public class EurekaServerConfiguration {
+
+  /**
+   * Name of the instance registry bean of the Spring Cloud Eureka server.
+   */
+  private static final String INSTANCE_REGISTRY = "peerAwareInstanceRegistry";
+
+  /**
+   * Use a {@link RegistryInstanceRegistry} as instance registry. The Spring Cloud one is not
+   * conditional, its definition is replaced.
+   */
+  @Bean
+  public static BeanDefinitionRegistryPostProcessor registryInstanceRegistryPostProcessor() {
+    return new BeanDefinitionRegistryPostProcessor() {
+      @Override
+      public void postProcessBeanDefinitionRegistry(BeanDefinitionRegistry registry) {
+        if (registry.containsBeanDefinition(INSTANCE_REGISTRY)) {
+          registry.removeBeanDefinition(INSTANCE_REGISTRY);
+          registry.registerBeanDefinition(INSTANCE_REGISTRY, BeanDefinitionBuilder
+              .genericBeanDefinition(RegistryInstanceRegistry.class)
+              .setAutowireMode(AbstractBeanDefinition.AUTOWIRE_CONSTRUCTOR).getBeanDefinition());
+        }
+      }
+
+      @Override
+      public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+      }
+    };
+  }
+
+  @Bean
+  public PeerEurekaNodes peerEurekaNodes(PeerAwareInstanceRegistry registry,
+      EurekaServerConfig serverConfig, EurekaClientConfig clientConfig, ServerCodecs serverCodecs,
+      ApplicationInfoManager applicationInfoManager,
+      ReplicationClientAdditionalFilters replicationClientAdditionalFilters, DnsCache dnsCache,
+      MeterRegistry meterRegistry, RegistryProperties registryProperties) {
+    return new RegistryPeerEurekaNodes(registry, serverConfig, clientConfig, serverCodecs,
+        applicationInfoManager, replicationClientAdditionalFilters, dnsCache, meterRegistry,
+        registryProperties);
+  }
+
+  /**
+   * Decompresses the replication batches before the Eureka Jersey filter, registered with the
+   * lowest precedence, reads them.
+   */
+  @Bean
+  public FilterRegistrationBean<ReplicationDecompressionFilter> replicationDecompressionFilter(
+      RegistryProperties registryProperties) {
+    FilterRegistrationBean<ReplicationDecompressionFilter> registration =
+        new FilterRegistrationBean<>(new ReplicationDecompressionFilter(
+            registryProperties.getReplication().getMaxDecompressedSize().toBytes()));
+    registration.setUrlPatterns(Collections.singletonList("/eureka/peerreplication/*"));
+    registration.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+    return registration;
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.renewal", name = "fast-path", matchIfMissing = true)
+  public RenewalBatcher renewalBatcher(RegistryProperties registryProperties) {
+    return new RenewalBatcher(registryProperties);
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.renewal", name = "fast-path", matchIfMissing = true)
+  public RenewalFastPathFilter renewalFastPathFilter(
+      ObjectProvider<AuthenticationManager> authenticationManager,
+      RenewalBatcher renewalBatcher) {
+    return new RenewalFastPathFilter(authenticationManager, renewalBatcher);
+  }
+
+  /**
+   * Answer the client heartbeats before the Spring Security filter chain.
+   */
+  @Bean
+  @ConditionalOnProperty(prefix = "registry.renewal", name = "fast-path", matchIfMissing = true)
+  public FilterRegistrationBean<RenewalFastPathFilter> renewalFastPathFilterRegistration(
+      RenewalFastPathFilter renewalFastPathFilter) {
+    FilterRegistrationBean<RenewalFastPathFilter> registration =
+        new FilterRegistrationBean<>(renewalFastPathFilter);
+    registration.setUrlPatterns(Collections.singletonList("/eureka/apps/*"));
+    registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER - 1);
+    return registration;
+  }
+}
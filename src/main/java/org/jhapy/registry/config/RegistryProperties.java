@@ -0,0 +1,1079 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Tuning of the registry server own features, bound from the <code>registry.*</code> keys.
+ */
+@ConfigurationProperties(prefix = "registry")
+public class RegistryProperties {
+
+  private final Snapshot snapshot = new Snapshot();
+
+  private final Events events = new Events();
+
+  private final History history = new History();
+
+  private final Persistence persistence = new Persistence();
+
+  private final Discovery discovery = new Discovery();
+
+  private final Dns dns = new Dns();
+
+  private final Metrics metrics = new Metrics();
+
+  private final Config config = new Config();
+
+  private final Security security = new Security();
+
+  private final Replication replication = new Replication();
+
+  private final Renewal renewal = new Renewal();
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public Events getEvents() {
+    return events;
+  }
+
+  public History getHistory() {
+    return history;
+  }
+
+  public Persistence getPersistence() {
+    return persistence;
+  }
+
+  public Discovery getDiscovery() {
+    return discovery;
+  }
+
+  public Dns getDns() {
+    return dns;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  public Security getSecurity() {
+    return security;
+  }
+
+  public Replication getReplication() {
+    return replication;
+  }
+
+  public Renewal getRenewal() {
+    return renewal;
+  }
+
+  public static class Snapshot {
+
+    /**
+     * Delay between two comparisons of the Eureka registry with the cached snapshot.
+     */
+    private Duration refreshInterval = Duration.ofSeconds(5);
+
+    /**
+     * Number of previous snapshot versions kept to answer delta requests.
+     */
+    private int historySize = 16;
+
+    /**
+     * Instance metadata keys indexed to answer filtered queries, other keys are matched by a scan.
+     */
+    private List<String> indexedMetadataKeys = new ArrayList<>(
+        Arrays.asList("zone", "profile", "version", "git-commit"));
+
+    public Duration getRefreshInterval() {
+      return refreshInterval;
+    }
+
+    public void setRefreshInterval(Duration refreshInterval) {
+      this.refreshInterval = refreshInterval;
+    }
+
+    public int getHistorySize() {
+      return historySize;
+    }
+
+    public void setHistorySize(int historySize) {
+      this.historySize = historySize;
+    }
+
+    public List<String> getIndexedMetadataKeys() {
+      return indexedMetadataKeys;
+    }
+
+    public void setIndexedMetadataKeys(List<String> indexedMetadataKeys) {
+      this.indexedMetadataKeys = indexedMetadataKeys;
+    }
+  }
+
+  public static class Events {
+
+    /**
+     * Events buffered per subscriber, the oldest ones are dropped when a consumer is too slow.
+     */
+    private int bufferSize = 256;
+
+    /**
+     * Maximum number of concurrent event stream subscribers.
+     */
+    private int maxSubscribers = 64;
+
+    /**
+     * Threads used to push buffered events to the subscribers.
+     */
+    private int dispatcherThreads = 2;
+
+    /**
+     * Lifetime of an event stream, the client is expected to reconnect afterwards.
+     */
+    private Duration streamTimeout = Duration.ofMinutes(30);
+
+    public int getBufferSize() {
+      return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+    }
+
+    public int getMaxSubscribers() {
+      return maxSubscribers;
+    }
+
+    public void setMaxSubscribers(int maxSubscribers) {
+      this.maxSubscribers = maxSubscribers;
+    }
+
+    public int getDispatcherThreads() {
+      return dispatcherThreads;
+    }
+
+    public void setDispatcherThreads(int dispatcherThreads) {
+      this.dispatcherThreads = dispatcherThreads;
+    }
+
+    public Duration getStreamTimeout() {
+      return streamTimeout;
+    }
+
+    public void setStreamTimeout(Duration streamTimeout) {
+      this.streamTimeout = streamTimeout;
+    }
+  }
+
+  public static class History {
+
+    /**
+     * Whether registry events are written to the on-disk history log.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Directory of the history log segments.
+     */
+    private String directory = "./data/registry-history";
+
+    /**
+     * Size of one memory-mapped segment.
+     */
+    private DataSize segmentSize = DataSize.ofMegabytes(16);
+
+    /**
+     * Disk space used by the history log, the oldest segments are deleted beyond it.
+     */
+    private DataSize maxDiskSize = DataSize.ofMegabytes(256);
+
+    /**
+     * Events waiting to be written, new events are dropped when the writer falls behind.
+     */
+    private int queueCapacity = 8192;
+
+    /**
+     * Maximum number of events written per batch.
+     */
+    private int batchSize = 512;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = directory;
+    }
+
+    public DataSize getSegmentSize() {
+      return segmentSize;
+    }
+
+    public void setSegmentSize(DataSize segmentSize) {
+      this.segmentSize = segmentSize;
+    }
+
+    public DataSize getMaxDiskSize() {
+      return maxDiskSize;
+    }
+
+    public void setMaxDiskSize(DataSize maxDiskSize) {
+      this.maxDiskSize = maxDiskSize;
+    }
+
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+    }
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+    }
+  }
+
+  public static class Persistence {
+
+    /**
+     * Whether the registry content is saved to disk and reloaded when the server starts.
+     */
+    private boolean enabled = true;
+
+    /**
+     * File holding the last saved registry content.
+     */
+    private String file = "./data/registry-snapshot.bin";
+
+    /**
+     * Delay between two saves, the registry is also saved on shutdown.
+     */
+    private Duration interval = Duration.ofSeconds(30);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public String getFile() {
+      return file;
+    }
+
+    public void setFile(String file) {
+      this.file = file;
+    }
+
+    public Duration getInterval() {
+      return interval;
+    }
+
+    public void setInterval(Duration interval) {
+      this.interval = interval;
+    }
+  }
+
+  public static class Discovery {
+
+    /**
+     * Number of attempts to find the interface facing the Eureka servers before failing.
+     */
+    private int maxAttempts = 10;
+
+    /**
+     * Time allowed to resolve the Eureka server host names during one attempt.
+     */
+    private Duration resolveTimeout = Duration.ofSeconds(2);
+
+    /**
+     * Delay before the second attempt, doubled after each failure.
+     */
+    private Duration initialBackoff = Duration.ofMillis(200);
+
+    /**
+     * Upper bound of the delay between two attempts.
+     */
+    private Duration maxBackoff = Duration.ofSeconds(5);
+
+    public int getMaxAttempts() {
+      return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+    }
+
+    public Duration getResolveTimeout() {
+      return resolveTimeout;
+    }
+
+    public void setResolveTimeout(Duration resolveTimeout) {
+      this.resolveTimeout = resolveTimeout;
+    }
+
+    public Duration getInitialBackoff() {
+      return initialBackoff;
+    }
+
+    public void setInitialBackoff(Duration initialBackoff) {
+      this.initialBackoff = initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+      return maxBackoff;
+    }
+
+    public void setMaxBackoff(Duration maxBackoff) {
+      this.maxBackoff = maxBackoff;
+    }
+  }
+
+  public static class Dns {
+
+    /**
+     * How long a resolved host name is served from the cache.
+     */
+    private Duration ttl = Duration.ofSeconds(60);
+
+    /**
+     * How long an unknown host name is remembered as such.
+     */
+    private Duration negativeTtl = Duration.ofSeconds(5);
+
+    /**
+     * Delay between two background refreshes of the entries about to expire.
+     */
+    private Duration refreshInterval = Duration.ofSeconds(15);
+
+    /**
+     * Entries not read for this long are dropped instead of refreshed.
+     */
+    private Duration idleTimeout = Duration.ofMinutes(10);
+
+    /**
+     * Maximum time a blocking resolution waits for the name server.
+     */
+    private Duration lookupTimeout = Duration.ofSeconds(2);
+
+    public Duration getTtl() {
+      return ttl;
+    }
+
+    public void setTtl(Duration ttl) {
+      this.ttl = ttl;
+    }
+
+    public Duration getNegativeTtl() {
+      return negativeTtl;
+    }
+
+    public void setNegativeTtl(Duration negativeTtl) {
+      this.negativeTtl = negativeTtl;
+    }
+
+    public Duration getRefreshInterval() {
+      return refreshInterval;
+    }
+
+    public void setRefreshInterval(Duration refreshInterval) {
+      this.refreshInterval = refreshInterval;
+    }
+
+    public Duration getIdleTimeout() {
+      return idleTimeout;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout) {
+      this.idleTimeout = idleTimeout;
+    }
+
+    public Duration getLookupTimeout() {
+      return lookupTimeout;
+    }
+
+    public void setLookupTimeout(Duration lookupTimeout) {
+      this.lookupTimeout = lookupTimeout;
+    }
+  }
+
+  public static class Metrics {
+
+    /**
+     * How long a computed section of the jhametrics endpoint is served to other callers.
+     */
+    private Duration freshness = Duration.ofSeconds(10);
+
+    /**
+     * Freshness of specific sections, by section name, overriding the default one.
+     */
+    private Map<String, Duration> sectionFreshness = new HashMap<>();
+
+    private final Sampling sampling = new Sampling();
+
+    public Duration getFreshness() {
+      return freshness;
+    }
+
+    public void setFreshness(Duration freshness) {
+      this.freshness = freshness;
+    }
+
+    public Map<String, Duration> getSectionFreshness() {
+      return sectionFreshness;
+    }
+
+    public void setSectionFreshness(Map<String, Duration> sectionFreshness) {
+      this.sectionFreshness = sectionFreshness;
+    }
+
+    /**
+     * @return the freshness of the given section
+     */
+    public Duration freshnessOf(String section) {
+      return sectionFreshness.getOrDefault(section, freshness);
+    }
+
+    public Sampling getSampling() {
+      return sampling;
+    }
+  }
+
+  public static class Sampling {
+
+    /**
+     * Whether the main metrics are sampled in memory to serve their recent history.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Delay between two samples.
+     */
+    private Duration interval = Duration.ofSeconds(10);
+
+    /**
+     * Number of samples kept, the oldest ones are overwritten.
+     */
+    private int capacity = 8640;
+
+    /**
+     * Memory allowed to the samples, the capacity is reduced to fit in it.
+     */
+    private DataSize maxMemory = DataSize.ofMegabytes(4);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getInterval() {
+      return interval;
+    }
+
+    public void setInterval(Duration interval) {
+      this.interval = interval;
+    }
+
+    public int getCapacity() {
+      return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+      this.capacity = capacity;
+    }
+
+    public DataSize getMaxMemory() {
+      return maxMemory;
+    }
+
+    public void setMaxMemory(DataSize maxMemory) {
+      this.maxMemory = maxMemory;
+    }
+  }
+
+  public static class Config {
+
+    private final ConfigCache cache = new ConfigCache();
+
+    private final ConfigFetch fetch = new ConfigFetch();
+
+    private final ConfigPayload payload = new ConfigPayload();
+
+    private final ConfigDecrypt decrypt = new ConfigDecrypt();
+
+    private final ConfigWatch watch = new ConfigWatch();
+
+    public ConfigCache getCache() {
+      return cache;
+    }
+
+    public ConfigFetch getFetch() {
+      return fetch;
+    }
+
+    public ConfigPayload getPayload() {
+      return payload;
+    }
+
+    public ConfigDecrypt getDecrypt() {
+      return decrypt;
+    }
+
+    public ConfigWatch getWatch() {
+      return watch;
+    }
+  }
+
+  public static class ConfigCache {
+
+    /**
+     * Whether the environments resolved by the config server are cached.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Upper bound of the life of a cached environment, also when its revision is unchanged.
+     */
+    private Duration timeToLive = Duration.ofMinutes(5);
+
+    /**
+     * Number of (application, profile, label) environments kept, the oldest ones are dropped.
+     */
+    private int maxEntries = 1024;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getTimeToLive() {
+      return timeToLive;
+    }
+
+    public void setTimeToLive(Duration timeToLive) {
+      this.timeToLive = timeToLive;
+    }
+
+    public int getMaxEntries() {
+      return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+  }
+
+  public static class ConfigFetch {
+
+    /**
+     * Whether the Git config repositories are cloned at startup and fetched in the background,
+     * request threads then only read the local copies.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Delay between two background fetches of the repositories.
+     */
+    private Duration interval = Duration.ofSeconds(30);
+
+    /**
+     * Repositories cloned or fetched in parallel.
+     */
+    private int threads = 4;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getInterval() {
+      return interval;
+    }
+
+    public void setInterval(Duration interval) {
+      this.interval = interval;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public void setThreads(int threads) {
+      this.threads = threads;
+    }
+  }
+
+  public static class ConfigPayload {
+
+    /**
+     * Whether the serialized config server responses are kept, with a gzip copy, while their
+     * environment stays in the cache.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Number of responses kept, one per path, query and Accept header.
+     */
+    private int maxEntries = 1024;
+
+    /**
+     * Smallest response compressed with gzip.
+     */
+    private DataSize compressionMinSize = DataSize.ofKilobytes(2);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public int getMaxEntries() {
+      return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    public DataSize getCompressionMinSize() {
+      return compressionMinSize;
+    }
+
+    public void setCompressionMinSize(DataSize compressionMinSize) {
+      this.compressionMinSize = compressionMinSize;
+    }
+  }
+
+  public static class ConfigDecrypt {
+
+    /**
+     * Whether the decrypted <code>{cipher}</code> values are cached.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Upper bound of the life of a decrypted value.
+     */
+    private Duration timeToLive = Duration.ofHours(1);
+
+    /**
+     * Number of decrypted values kept, the oldest ones are dropped.
+     */
+    private int maxEntries = 4096;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getTimeToLive() {
+      return timeToLive;
+    }
+
+    public void setTimeToLive(Duration timeToLive) {
+      this.timeToLive = timeToLive;
+    }
+
+    public int getMaxEntries() {
+      return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+  }
+
+  public static class ConfigWatch {
+
+    /**
+     * Whether <code>/api/config/watch</code> long polls are accepted.
+     */
+    private boolean enabled = true;
+
+    /**
+     * How long a long poll is held when the revision does not change, also the upper bound of
+     * the <code>timeout</code> request parameter.
+     */
+    private Duration timeout = Duration.ofSeconds(30);
+
+    /**
+     * Delay between two checks of the revisions of the watched environments.
+     */
+    private Duration checkInterval = Duration.ofSeconds(5);
+
+    /**
+     * Minimum delay between two revision lookups of an environment served by repositories not
+     * fetched in the background (SVN, URIs with placeholders, background fetch disabled): the
+     * lookup refreshes them, over the network.
+     */
+    private Duration locateInterval = Duration.ofMinutes(1);
+
+    /**
+     * Long polls held at the same time, the next ones are rejected with a 503.
+     */
+    private int maxWatches = 10000;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getTimeout() {
+      return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+      this.timeout = timeout;
+    }
+
+    public Duration getCheckInterval() {
+      return checkInterval;
+    }
+
+    public void setCheckInterval(Duration checkInterval) {
+      this.checkInterval = checkInterval;
+    }
+
+    public Duration getLocateInterval() {
+      return locateInterval;
+    }
+
+    public void setLocateInterval(Duration locateInterval) {
+      this.locateInterval = locateInterval;
+    }
+
+    public int getMaxWatches() {
+      return maxWatches;
+    }
+
+    public void setMaxWatches(int maxWatches) {
+      this.maxWatches = maxWatches;
+    }
+  }
+
+  public static class Security {
+
+    private final JwtCache jwtCache = new JwtCache();
+
+    private final CredentialCache credentialCache = new CredentialCache();
+
+    private final Jwks jwks = new Jwks();
+
+    public JwtCache getJwtCache() {
+      return jwtCache;
+    }
+
+    public CredentialCache getCredentialCache() {
+      return credentialCache;
+    }
+
+    public Jwks getJwks() {
+      return jwks;
+    }
+  }
+
+  public static class JwtCache {
+
+    /**
+     * Whether the decoded bearer tokens are cached until their expiry.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Upper bound of the life of a decoded token, also when it expires later.
+     */
+    private Duration timeToLive = Duration.ofMinutes(5);
+
+    /**
+     * Number of decoded tokens kept, the ones expiring first are dropped.
+     */
+    private int maxEntries = 4096;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getTimeToLive() {
+      return timeToLive;
+    }
+
+    public void setTimeToLive(Duration timeToLive) {
+      this.timeToLive = timeToLive;
+    }
+
+    public int getMaxEntries() {
+      return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+  }
+
+  public static class CredentialCache {
+
+    /**
+     * Whether the passwords verified by the password encoder are remembered for a while.
+     */
+    private boolean enabled = true;
+
+    /**
+     * How long a verified password is accepted without running the password encoder again.
+     */
+    private Duration timeToLive = Duration.ofMinutes(1);
+
+    /**
+     * Number of verified passwords kept, the oldest ones are dropped.
+     */
+    private int maxEntries = 1024;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getTimeToLive() {
+      return timeToLive;
+    }
+
+    public void setTimeToLive(Duration timeToLive) {
+      this.timeToLive = timeToLive;
+    }
+
+    public int getMaxEntries() {
+      return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+  }
+
+  public static class Jwks {
+
+    /**
+     * Delay between two loads of the signing keys of the OIDC issuer, shortened when the key set
+     * response has a smaller <code>max-age</code>.
+     */
+    private Duration refreshInterval = Duration.ofMinutes(5);
+
+    /**
+     * Delay before a new attempt when the issuer cannot be reached, also the minimum delay
+     * between two loads triggered by an unknown key id.
+     */
+    private Duration retryInterval = Duration.ofSeconds(10);
+
+    /**
+     * Connect and read timeout of the discovery and key set requests.
+     */
+    private Duration timeout = Duration.ofSeconds(5);
+
+    public Duration getRefreshInterval() {
+      return refreshInterval;
+    }
+
+    public void setRefreshInterval(Duration refreshInterval) {
+      this.refreshInterval = refreshInterval;
+    }
+
+    public Duration getRetryInterval() {
+      return retryInterval;
+    }
+
+    public void setRetryInterval(Duration retryInterval) {
+      this.retryInterval = retryInterval;
+    }
+
+    public Duration getTimeout() {
+      return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+      this.timeout = timeout;
+    }
+  }
+
+  public static class Replication {
+
+    /**
+     * Maximum number of replication tasks sent to a peer in one batch.
+     */
+    private int batchSize = 250;
+
+    /**
+     * How long a replication task waits for others to join its batch. The renewals of an
+     * instance received within this window are sent once.
+     */
+    private Duration batchingDelay = Duration.ofMillis(500);
+
+    /**
+     * Whether the batches are sent compressed with gzip to the peers announcing they accept it.
+     */
+    private boolean compression = true;
+
+    /**
+     * Maximum size of a compressed batch received from a peer, once decompressed. Larger batches
+     * are rejected with 413 (Payload Too Large).
+     */
+    private DataSize maxDecompressedSize = DataSize.ofMegabytes(10);
+
+    /**
+     * Delay between two health probes of the peers, shown by the replica view.
+     */
+    private Duration probeInterval = Duration.ofSeconds(10);
+
+    /**
+     * Connect and response timeout of a peer health probe.
+     */
+    private Duration probeTimeout = Duration.ofSeconds(2);
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public Duration getBatchingDelay() {
+      return batchingDelay;
+    }
+
+    public void setBatchingDelay(Duration batchingDelay) {
+      this.batchingDelay = batchingDelay;
+    }
+
+    public boolean isCompression() {
+      return compression;
+    }
+
+    public void setCompression(boolean compression) {
+      this.compression = compression;
+    }
+
+    public DataSize getMaxDecompressedSize() {
+      return maxDecompressedSize;
+    }
+
+    public void setMaxDecompressedSize(DataSize maxDecompressedSize) {
+      this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    public Duration getProbeInterval() {
+      return probeInterval;
+    }
+
+    public void setProbeInterval(Duration probeInterval) {
+      this.probeInterval = probeInterval;
+    }
+
+    public Duration getProbeTimeout() {
+      return probeTimeout;
+    }
+
+    public void setProbeTimeout(Duration probeTimeout) {
+      this.probeTimeout = probeTimeout;
+    }
+  }
+
+  public static class Renewal {
+
+    /**
+     * Whether the heartbeats of the Eureka clients are answered before the security filter chain
+     * and Jersey.
+     */
+    private boolean fastPath = true;
+
+    /**
+     * Interval at which the heartbeats answered by the fast path are replicated to the peers and
+     * published to the listeners (metrics, registry snapshot).
+     */
+    private Duration batchInterval = Duration.ofMillis(250);
+
+    public boolean isFastPath() {
+      return fastPath;
+    }
+
+    public void setFastPath(boolean fastPath) {
+      this.fastPath = fastPath;
+    }
+
+    public Duration getBatchInterval() {
+      return batchInterval;
+    }
+
+    public void setBatchInterval(Duration batchInterval) {
+      this.batchInterval = batchInterval;
+    }
+  }
+}
@@ -22,11 +22,14 @@ import org.jhapy.commons.config.AppProperties;
 import org.jhapy.commons.security.AuthoritiesConstants;
 import org.jhapy.commons.security.oauth2.AudienceValidator;
 import org.jhapy.commons.security.oauth2.JwtGrantedAuthorityConverter;
+import org.jhapy.registry.security.CachingJwtDecoder;
+import org.jhapy.registry.security.JwkSetManager;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.annotation.Order;
 import org.springframework.core.convert.converter.Converter;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.security.authentication.AbstractAuthenticationToken;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -36,8 +39,6 @@ import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.oauth2.core.DelegatingOAuth2TokenValidator;
 import org.springframework.security.oauth2.core.OAuth2TokenValidator;
 import org.springframework.security.oauth2.jwt.Jwt;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
-import org.springframework.security.oauth2.jwt.JwtDecoders;
 import org.springframework.security.oauth2.jwt.JwtValidators;
 import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
@@ -49,15 +50,23 @@ import org.zalando.problem.spring.web.advice.security.SecurityProblemSupport;
 @Import(SecurityProblemSupport.class)
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
 
+  /**
+   * Realm of the basic authentication challenges.
+   */
+  public static final String REALM_NAME = "JHapy Registry";
+
   @Value("${spring.security.oauth2.client.provider.oidc.issuer-uri}")
   private String issuerUri;
 
   private final AppProperties appProperties;
+  private final RegistryProperties registryProperties;
   private final SecurityProblemSupport problemSupport;
 
-  public SecurityConfiguration(AppProperties appProperties, SecurityProblemSupport problemSupport) {
+  public SecurityConfiguration(AppProperties appProperties,
+      RegistryProperties registryProperties, SecurityProblemSupport problemSupport) {
     this.problemSupport = problemSupport;
     this.appProperties = appProperties;
+    this.registryProperties = registryProperties;
   }
 
   @Override
@@ -88,13 +97,14 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
         .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
         .and()
         .httpBasic()
-        .realmName("JHapy Registry")
+        .realmName(REALM_NAME)
         .and()
         .authorizeRequests()
         .antMatchers("/eureka/**").hasAuthority(AuthoritiesConstants.ADMIN)
         .antMatchers("/config/**").hasAuthority(AuthoritiesConstants.ADMIN)
         .antMatchers("/registry/**").hasAuthority(AuthoritiesConstants.ADMIN)
         .antMatchers("/api/auth-info").permitAll()
+        .antMatchers("/api/config/**").hasAuthority(AuthoritiesConstants.ADMIN)
         .antMatchers("/api/**").authenticated()
         .antMatchers("/management/health").permitAll()
         .antMatchers("/management/info").permitAll()
@@ -118,8 +128,13 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
   }
 
   @Bean
-  JwtDecoder jwtDecoder() {
-    NimbusJwtDecoder jwtDecoder = (NimbusJwtDecoder) JwtDecoders.fromOidcIssuerLocation(issuerUri);
+  JwkSetManager jwkSetManager(TaskScheduler taskScheduler) {
+    return new JwkSetManager(issuerUri, taskScheduler, registryProperties);
+  }
+
+  @Bean
+  CachingJwtDecoder jwtDecoder(JwkSetManager jwkSetManager) {
+    NimbusJwtDecoder jwtDecoder = jwkSetManager.createDecoder();
 
     OAuth2TokenValidator<Jwt> audienceValidator = new AudienceValidator(
         appProperties.getSecurity().getOauth2().getAudience());
@@ -129,6 +144,9 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
 
     jwtDecoder.setJwtValidator(withAudience);
 
-    return jwtDecoder;
+    CachingJwtDecoder cachingJwtDecoder = new CachingJwtDecoder(jwtDecoder, registryProperties);
+    // Tokens signed by a withdrawn key must not outlive it in the cache
+    jwkSetManager.addKeysRemovedListener(cachingJwtDecoder::invalidate);
+    return cachingJwtDecoder;
   }
 }
@@ -20,14 +20,18 @@ package org.jhapy.registry.config.metric;
 
 import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.instrument.MeterRegistry;
+import org.jhapy.registry.config.RegistryProperties;
 import org.jhapy.registry.endpoint.JHapyMetricsEndpoint;
+import org.jhapy.registry.endpoint.JHapyMetricsHistoryEndpoint;
 import org.springframework.boot.actuate.autoconfigure.endpoint.condition.ConditionalOnAvailableEndpoint;
 import org.springframework.boot.actuate.autoconfigure.metrics.MetricsEndpointAutoConfiguration;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.TaskScheduler;
 
 /**
  * <p>JHapyMetricsEndpointConfiguration class.</p>
@@ -41,12 +45,33 @@ public class JHapyMetricsEndpointConfiguration {
    * <p>jHapyMetricsEndpoint.</p>
    *
    * @param meterRegistry a {@link MeterRegistry} object.
+   * @param registryProperties a {@link RegistryProperties} object.
    * @return a {@link JHapyMetricsEndpoint} object.
    */
   @Bean
   @ConditionalOnMissingBean
   @ConditionalOnAvailableEndpoint
-  public JHapyMetricsEndpoint jHapyMetricsEndpoint(MeterRegistry meterRegistry) {
-    return new JHapyMetricsEndpoint(meterRegistry);
+  public JHapyMetricsEndpoint jHapyMetricsEndpoint(MeterRegistry meterRegistry,
+      RegistryProperties registryProperties) {
+    return new JHapyMetricsEndpoint(meterRegistry, registryProperties.getMetrics());
   }
-}
\ No newline at end of file
+
+  /**
+   * <p>jHapyMetricsHistoryEndpoint.</p>
+   *
+   * @param meterRegistry a {@link MeterRegistry} object.
+   * @param taskScheduler the scheduler taking the samples.
+   * @param registryProperties a {@link RegistryProperties} object.
+   * @return a {@link JHapyMetricsHistoryEndpoint} object.
+   */
+  @Bean
+  @ConditionalOnMissingBean
+  @ConditionalOnAvailableEndpoint
+  @ConditionalOnProperty(prefix = "registry.metrics.sampling", name = "enabled",
+      matchIfMissing = true)
+  public JHapyMetricsHistoryEndpoint jHapyMetricsHistoryEndpoint(MeterRegistry meterRegistry,
+      TaskScheduler taskScheduler, RegistryProperties registryProperties) {
+    return new JHapyMetricsHistoryEndpoint(meterRegistry, taskScheduler,
+        registryProperties.getMetrics().getSampling());
+  }
+}
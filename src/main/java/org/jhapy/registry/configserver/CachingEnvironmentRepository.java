@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.config.server.environment.CompositeEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.cloud.config.server.environment.SearchPathLocator;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Composite environment repository answering from an {@link EnvironmentCache}.
+ * <p>
+ * The revision of a request is made of the versions of the repositories able to locate their
+ * search paths (Git, SVN). The Git repositories fetched in the background give the revision of
+ * their last fetch, without locking them; the others are looked up, which only updates their
+ * local copies. Resolving and merging the property sources is the expensive part, and is done
+ * once per revision.
+ */
+public class CachingEnvironmentRepository implements EnvironmentRepository, SearchPathLocator {
+
+  private final CompositeEnvironmentRepository delegate;
+  private final List<EnvironmentRepository> repositories;
+  private final EnvironmentCache cache;
+  private final ConfigRepositoryFetcher fetcher;
+
+  /**
+   * @param fetcher the background fetches of the Git repositories, <code>null</code> if disabled
+   */
+  @SuppressWarnings("unchecked")
+  public CachingEnvironmentRepository(CompositeEnvironmentRepository delegate,
+      EnvironmentCache cache, ConfigRepositoryFetcher fetcher) {
+    this.delegate = delegate;
+    this.cache = cache;
+    this.fetcher = fetcher;
+    Field field = ReflectionUtils
+        .findField(CompositeEnvironmentRepository.class, "environmentRepositories");
+    if (field == null) {
+      this.repositories = Collections.emptyList();
+    } else {
+      ReflectionUtils.makeAccessible(field);
+      this.repositories = (List<EnvironmentRepository>) ReflectionUtils.getField(field, delegate);
+    }
+  }
+
+  @Override
+  public Environment findOne(String application, String profile, String label) {
+    return findOne(application, profile, label, false);
+  }
+
+  @Override
+  public Environment findOne(String application, String profile, String label,
+      boolean includeOrigin) {
+    return cache.get(application, profile, label, includeOrigin,
+        () -> revision(application, profile, label),
+        () -> delegate.findOne(application, profile, label, includeOrigin));
+  }
+
+  @Override
+  public Locations getLocations(String application, String profile, String label) {
+    if (delegate instanceof SearchPathLocator) {
+      return ((SearchPathLocator) delegate).getLocations(application, profile, label);
+    }
+    return new Locations(application, profile, label, null, new String[0]);
+  }
+
+  private String revision(String application, String profile, String label) {
+    return revision(repositories, fetcher, application, profile, label);
+  }
+
+  /**
+   * @param fetcher the background fetches of the Git repositories, <code>null</code> if disabled
+   * @return the versions of the versioned repositories, <code>null</code> when there is none
+   */
+  static String revision(Iterable<? extends EnvironmentRepository> repositories,
+      ConfigRepositoryFetcher fetcher, String application, String profile, String label) {
+    return revision(repositories, fetcher, application, profile, label, true);
+  }
+
+  /**
+   * @param locate whether the repositories without a background fetch revision are looked up,
+   * which refreshes them: when <code>false</code>, <code>null</code> is returned if there is one
+   */
+  static String revision(Iterable<? extends EnvironmentRepository> repositories,
+      ConfigRepositoryFetcher fetcher, String application, String profile, String label,
+      boolean locate) {
+    StringJoiner revision = new StringJoiner(",");
+    boolean versioned = false;
+    for (EnvironmentRepository repository : repositories) {
+      if (repository instanceof SearchPathLocator) {
+        versioned = true;
+        String version = fetcher == null ? null : fetcher.getRevision(repository);
+        if (version == null) {
+          if (!locate) {
+            return null;
+          }
+          version = String.valueOf(((SearchPathLocator) repository)
+              .getLocations(application, profile, label).getVersion());
+        }
+        revision.add(version);
+      }
+    }
+    return versioned ? revision.toString() : null;
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import java.util.Map;
+import org.springframework.cloud.config.server.encryption.TextEncryptorLocator;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * Text encryptor locator answering the decryptions from a {@link DecryptionCache}.
+ * <p>
+ * The delegate is only asked for an encryptor on a miss, a cached value needs neither the key
+ * store nor the RSA decryption.
+ */
+public class CachingTextEncryptorLocator implements TextEncryptorLocator {
+
+  private final TextEncryptorLocator delegate;
+  private final DecryptionCache cache;
+
+  public CachingTextEncryptorLocator(TextEncryptorLocator delegate, DecryptionCache cache) {
+    this.delegate = delegate;
+    this.cache = cache;
+  }
+
+  @Override
+  public TextEncryptor locate(Map<String, String> keys) {
+    return new TextEncryptor() {
+      @Override
+      public String encrypt(String text) {
+        return delegate.locate(keys).encrypt(text);
+      }
+
+      @Override
+      public String decrypt(String encryptedText) {
+        return cache.get(keys, encryptedText, () -> delegate.locate(keys).decrypt(encryptedText));
+      }
+    };
+  }
+}
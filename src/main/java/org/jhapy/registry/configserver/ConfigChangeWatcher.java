@@ -0,0 +1,301 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.dto.serviceQuery.ServiceResult;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.config.server.environment.CompositeEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.cloud.config.server.environment.SearchPathLocator;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Long polls on the backend revision of a config environment.
+ * <p>
+ * A watch is held as a {@link DeferredResult}, without a servlet thread, until the revision of
+ * its (application, profile, label) differs from the version known by the client, or until it
+ * times out with a 304. The revisions are checked in the background, once per watched
+ * environment whatever the number of clients. Backends without versions (native, JDBC) never
+ * report a change.
+ * <p>
+ * The checks run on a thread of their own, the shared task scheduler only triggers them. The
+ * revisions of the repositories fetched in the background are read from the
+ * {@link ConfigRepositoryFetcher}; the other ones are refreshed by the lookup, so an environment
+ * using them is looked up at most once per <code>locate-interval</code>. A watch without a
+ * version is answered from the last checked revision, or by the next check, never by a lookup on
+ * the request thread.
+ */
+public class ConfigChangeWatcher implements MeterBinder, HasLogger {
+
+  private final ObjectProvider<EnvironmentRepository> repositoryProvider;
+  private final TaskScheduler taskScheduler;
+  private final RegistryProperties.ConfigWatch properties;
+  private final ConfigRepositoryFetcher fetcher;
+
+  private final Map<Key, Set<Watch>> watches = new ConcurrentHashMap<>();
+  private final Map<Key, String> revisions = new ConcurrentHashMap<>();
+  private final Map<Key, Long> located = new ConcurrentHashMap<>();
+  private final ExecutorService checker;
+  private final AtomicBoolean checkPending = new AtomicBoolean();
+  private final AtomicInteger active = new AtomicInteger();
+  private final LongAdder changes = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+
+  private List<EnvironmentRepository> repositories = Collections.emptyList();
+  private boolean versioned;
+  private ScheduledFuture<?> checkTask;
+
+  /**
+   * @param fetcher the background fetches of the Git repositories, <code>null</code> if disabled
+   */
+  public ConfigChangeWatcher(ObjectProvider<EnvironmentRepository> repositoryProvider,
+      TaskScheduler taskScheduler, RegistryProperties registryProperties,
+      ConfigRepositoryFetcher fetcher) {
+    this.repositoryProvider = repositoryProvider;
+    this.taskScheduler = taskScheduler;
+    this.properties = registryProperties.getConfig().getWatch();
+    this.fetcher = fetcher;
+    this.checker = Executors
+        .newSingleThreadExecutor(new CustomizableThreadFactory("config-watch-"));
+  }
+
+  @PostConstruct
+  public void start() {
+    // The backends themselves, not the composite built from them
+    repositories = repositoryProvider.orderedStream()
+        .filter(repository -> !(repository instanceof CompositeEnvironmentRepository)
+            && !(repository instanceof CachingEnvironmentRepository))
+        .collect(Collectors.toList());
+    versioned = repositories.stream()
+        .anyMatch(repository -> repository instanceof SearchPathLocator);
+    checkTask = taskScheduler
+        .scheduleWithFixedDelay(this::checkSoon, properties.getCheckInterval());
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (checkTask != null) {
+      checkTask.cancel(false);
+    }
+    checker.shutdownNow();
+  }
+
+  /**
+   * @param version the revision known by the client, <code>null</code> to get the current one
+   * right away
+   * @param timeout how long to wait for a change, bounded by the configured timeout, which is
+   * used when <code>null</code> or not positive
+   */
+  public DeferredResult<ResponseEntity<ServiceResult>> watch(String application, String profile,
+      String label, String version, Duration timeout) {
+    Key key = new Key(application, profile, label);
+    // A zero timeout would never expire the deferred result
+    long timeoutMillis = timeout == null || timeout.isNegative() || timeout.isZero()
+        ? properties.getTimeout().toMillis()
+        : Math.max(1, Math.min(timeout.toMillis(), properties.getTimeout().toMillis()));
+    DeferredResult<ResponseEntity<ServiceResult>> result = new DeferredResult<>(timeoutMillis,
+        ResponseEntity.status(HttpStatus.NOT_MODIFIED).build());
+    String known = revisions.get(key);
+    if (version == null && (known != null || !versioned)) {
+      result.setResult(changed(known));
+      return result;
+    }
+    if (version != null && known != null && !known.equals(version)) {
+      result.setResult(changed(known));
+      return result;
+    }
+    if (active.incrementAndGet() > properties.getMaxWatches()) {
+      active.decrementAndGet();
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+          "Too many config watches");
+    }
+    Watch watch = new Watch(version, result);
+    watches.compute(key, (k, keyWatches) -> {
+      Set<Watch> added = keyWatches == null ? ConcurrentHashMap.newKeySet() : keyWatches;
+      added.add(watch);
+      return added;
+    });
+    result.onTimeout(timeouts::increment);
+    result.onCompletion(() -> {
+      active.decrementAndGet();
+      watches.computeIfPresent(key, (k, keyWatches) -> {
+        keyWatches.remove(watch);
+        return keyWatches.isEmpty() ? null : keyWatches;
+      });
+    });
+    // A check may have run between the lookup and the registration
+    notify(key, revisions.get(key));
+    if (version == null) {
+      // Answered by the first check of the environment
+      checkSoon();
+    }
+    return result;
+  }
+
+  private void checkSoon() {
+    if (checkPending.compareAndSet(false, true)) {
+      try {
+        checker.execute(() -> {
+          checkPending.set(false);
+          check();
+        });
+      } catch (RejectedExecutionException e) {
+        // Stopped
+        checkPending.set(false);
+      }
+    }
+  }
+
+  /**
+   * Compute the revision of every watched environment and answer the watches it changed for.
+   */
+  public void check() {
+    String loggerPrefix = getLoggerPrefix("check");
+    revisions.keySet().retainAll(watches.keySet());
+    located.keySet().retainAll(watches.keySet());
+    long now = System.currentTimeMillis();
+    for (Key key : new ArrayList<>(watches.keySet())) {
+      try {
+        Long lastLocate = located.get(key);
+        boolean locate = lastLocate == null
+            || now - lastLocate >= properties.getLocateInterval().toMillis();
+        String revision = CachingEnvironmentRepository.revision(repositories, fetcher,
+            key.application, key.profile, key.label, locate);
+        if (locate) {
+          located.put(key, now);
+        }
+        if (revision != null) {
+          revisions.put(key, revision);
+        }
+        notify(key, revision);
+      } catch (RuntimeException e) {
+        logger().warn(loggerPrefix + "Unable to check the revision of {}: {}", key,
+            e.getMessage());
+      }
+    }
+  }
+
+  private void notify(Key key, String revision) {
+    Set<Watch> keyWatches = watches.get(key);
+    if (revision == null || keyWatches == null) {
+      return;
+    }
+    for (Watch watch : keyWatches) {
+      if (!revision.equals(watch.version) && watch.result.setResult(changed(revision))) {
+        changes.increment();
+      }
+    }
+  }
+
+  private static ResponseEntity<ServiceResult> changed(String revision) {
+    return ResponseEntity.ok(new ServiceResult(Collections.singletonMap("version", revision)));
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    Gauge.builder("registry.config.watch.active", active, AtomicInteger::get)
+        .description("Config long polls waiting for a change").register(registry);
+    completionCounter(registry, "changed", changes);
+    completionCounter(registry, "timeout", timeouts);
+  }
+
+  private void completionCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.config.watch.completions", counter, LongAdder::sum)
+        .tag("result", result).description("Config long polls by outcome").register(registry);
+  }
+
+  private static class Key {
+
+    private final String application;
+    private final String profile;
+    private final String label;
+
+    private Key(String application, String profile, String label) {
+      this.application = application;
+      this.profile = profile;
+      this.label = label;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key key = (Key) o;
+      return application.equals(key.application) && profile.equals(key.profile) && Objects
+          .equals(label, key.label);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(application, profile, label);
+    }
+
+    @Override
+    public String toString() {
+      return application + "/" + profile + (label == null ? "" : "/" + label);
+    }
+  }
+
+  private static class Watch {
+
+    /**
+     * <code>null</code> to be answered with the first known revision.
+     */
+    private final String version;
+    private final DeferredResult<ResponseEntity<ServiceResult>> result;
+
+    private Watch(String version, DeferredResult<ResponseEntity<ServiceResult>> result) {
+      this.version = version;
+      this.result = result;
+    }
+  }
+}
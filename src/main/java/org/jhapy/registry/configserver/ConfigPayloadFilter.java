@@ -0,0 +1,217 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+/**
+ * Serves the config server environment endpoints from their serialized form.
+ * <p>
+ * The first response for a path, query and Accept header is kept as bytes, with a gzip copy,
+ * along with the {@link EnvironmentCache} entry it was built from. As long as this entry is
+ * current, the same bytes are sent again without going through the controller, gzip encoded when
+ * the client accepts it. The ETag is computed from the content, an unchanged config is answered
+ * with a 304. The filter is only active when the config server has its own prefix.
+ */
+public class ConfigPayloadFilter extends OncePerRequestFilter implements MeterBinder, HasLogger {
+
+  /**
+   * The environment endpoints have at most three segments (<code>/{name}/{profiles}/{label}</code>),
+   * longer paths are plain text resources.
+   */
+  private static final int MAX_SEGMENTS = 3;
+
+  private final EnvironmentCache environmentCache;
+  private final RegistryProperties.ConfigPayload properties;
+  private final String prefix;
+  private final Map<String, Payload> payloads = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+
+  /**
+   * @param prefix the prefix of the config server endpoints, as set by
+   * <code>spring.cloud.config.server.prefix</code>
+   */
+  public ConfigPayloadFilter(EnvironmentCache environmentCache,
+      RegistryProperties registryProperties, String prefix) {
+    this.environmentCache = environmentCache;
+    this.properties = registryProperties.getConfig().getPayload();
+    this.prefix = StringUtils.hasText(prefix) ? StringUtils.trimTrailingCharacter(prefix, '/') : "";
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    if (!"GET".equals(request.getMethod())) {
+      return true;
+    }
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    // Without a prefix, the config endpoints cannot be told apart from the other ones
+    if (prefix.isEmpty() || !path.startsWith(prefix + "/")) {
+      return true;
+    }
+    String[] segments = StringUtils.tokenizeToStringArray(path.substring(prefix.length()), "/");
+    return segments.length == 0 || segments.length > MAX_SEGMENTS;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    String variant = request.getRequestURI() + "?" + request.getQueryString() + "|" + request
+        .getHeader(HttpHeaders.ACCEPT);
+    Payload payload = payloads.get(variant);
+    if (payload != null && environmentCache.isCurrent(payload.token)) {
+      hits.increment();
+      response.setContentType(payload.contentType);
+      send(payload, request, response);
+      return;
+    }
+
+    misses.increment();
+    ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+    List<EnvironmentCache.Token> tokens;
+    environmentCache.startRecording();
+    try {
+      filterChain.doFilter(request, wrapper);
+    } finally {
+      tokens = environmentCache.stopRecording();
+    }
+    // Only a response built from a single cached environment can follow its validity
+    if (wrapper.getStatus() != HttpServletResponse.SC_OK || tokens.size() != 1
+        || wrapper.getContentType() == null || response.isCommitted()) {
+      wrapper.copyBodyToResponse();
+      return;
+    }
+    payload = new Payload(tokens.get(0), wrapper.getContentType(), wrapper.getContentAsByteArray(),
+        properties.getCompressionMinSize().toBytes());
+    payloads.put(variant, payload);
+    evictOverflow();
+    send(payload, request, response);
+  }
+
+  private void send(Payload payload, HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    if (new ServletWebRequest(request, response).checkNotModified(payload.etag)) {
+      notModified.increment();
+      return;
+    }
+    byte[] body = payload.body;
+    if (payload.gzipBody != null && acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+      response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+      body = payload.gzipBody;
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : StringUtils.tokenizeToStringArray(acceptEncoding, ",")) {
+      String[] parts = StringUtils.tokenizeToStringArray(coding, ";");
+      if (parts.length == 0 || !"gzip".equalsIgnoreCase(parts[0]) && !"*".equals(parts[0])) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        if (parts[i].matches("[qQ]\\s*=\\s*0(\\.0*)?")) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private void evictOverflow() {
+    while (payloads.size() > properties.getMaxEntries()) {
+      payloads.entrySet().stream()
+          .min((a, b) -> Long.compare(a.getValue().createdAt, b.getValue().createdAt))
+          .ifPresent(oldest -> payloads.remove(oldest.getKey(), oldest.getValue()));
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    requestCounter(registry, "hit", hits);
+    requestCounter(registry, "miss", misses);
+    FunctionCounter.builder("registry.config.payload.not.modified", notModified, LongAdder::sum)
+        .description("Config responses answered with a 304").register(registry);
+    Gauge.builder("registry.config.payload.size", payloads, Map::size)
+        .description("Serialized config responses kept").register(registry);
+  }
+
+  private void requestCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.config.payload.requests", counter, LongAdder::sum)
+        .tag("result", result).description("Config responses by payload cache outcome")
+        .register(registry);
+  }
+
+  private static class Payload {
+
+    private final EnvironmentCache.Token token;
+    private final String contentType;
+    private final byte[] body;
+    private final byte[] gzipBody;
+    private final String etag;
+    private final long createdAt = System.nanoTime();
+
+    private Payload(EnvironmentCache.Token token, String contentType, byte[] body,
+        long compressionMinSize) throws IOException {
+      this.token = token;
+      this.contentType = contentType;
+      this.body = body;
+      this.gzipBody = body.length >= compressionMinSize ? gzip(body) : null;
+      // Weak: the identity and gzip encodings of the content share the tag
+      this.etag = "W/\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+        gzip.write(body);
+      }
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.TagOpt;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.cloud.config.server.environment.EnvironmentRepository;
+import org.springframework.cloud.config.server.environment.JGitEnvironmentRepository;
+import org.springframework.cloud.config.server.environment.MultipleJGitEnvironmentRepository;
+import org.springframework.cloud.config.server.support.GitCredentialsProviderFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Clones and fetches the Git config repositories off the request threads.
+ * <p>
+ * When the server starts, every repository of the composite backend (and the pattern matched
+ * repositories of each of them) is cloned or fetched in parallel; the health stays out of
+ * service until this is done. The repositories are then fetched in the background, and their
+ * refresh rate is raised so a config request only checks out and merges the local copy. The
+ * repositories whose URI depends on the request (<code>{application}</code> placeholders) are
+ * only known once requested and keep the Spring Cloud behavior.
+ * <p>
+ * After each fetch, the remote branches and tags of a repository are summed up as its revision,
+ * which the config lookups read without going through the repository lock.
+ */
+public class ConfigRepositoryFetcher implements SmartLifecycle, HealthIndicator, MeterBinder,
+    HasLogger {
+
+  /**
+   * Refresh rate, in seconds, set on the repositories: only the background fetch reaches the
+   * remotes. Kept small enough for <code>refreshRate * 1000</code> to fit in an int.
+   */
+  private static final int BACKGROUND_ONLY_REFRESH_RATE = 1_000_000;
+
+  private final ObjectProvider<EnvironmentRepository> repositoryProvider;
+  private final TaskScheduler taskScheduler;
+  private final RegistryProperties.ConfigFetch properties;
+  private final ExecutorService executor;
+  private final List<Repository> repositories = new ArrayList<>();
+  private final Map<JGitEnvironmentRepository, Repository> repositoriesBySource =
+      new ConcurrentHashMap<>();
+  private final GitCredentialsProviderFactory credentialsProviderFactory =
+      new GitCredentialsProviderFactory();
+
+  private volatile MeterRegistry meterRegistry;
+  private volatile boolean warmedUp;
+  private volatile boolean running;
+  private ScheduledFuture<?> fetchTask;
+
+  public ConfigRepositoryFetcher(ObjectProvider<EnvironmentRepository> repositoryProvider,
+      TaskScheduler taskScheduler, RegistryProperties registryProperties) {
+    this.repositoryProvider = repositoryProvider;
+    this.taskScheduler = taskScheduler;
+    this.properties = registryProperties.getConfig().getFetch();
+    this.executor = Executors.newFixedThreadPool(properties.getThreads(),
+        new CustomizableThreadFactory("config-fetch-"));
+  }
+
+  @Override
+  public void start() {
+    repositoryProvider.orderedStream().filter(JGitEnvironmentRepository.class::isInstance)
+        .map(JGitEnvironmentRepository.class::cast).forEach(repository -> {
+          add(repository);
+          if (repository instanceof MultipleJGitEnvironmentRepository) {
+            ((MultipleJGitEnvironmentRepository) repository).getRepos().values()
+                .forEach(this::add);
+          }
+        });
+    running = true;
+    MeterRegistry meters = meterRegistry;
+    if (meters != null) {
+      repositories.forEach(repository -> repository.bindTo(meters));
+    }
+    logger().info(getLoggerPrefix("start") + "Warming up {} config repositories",
+        repositories.size());
+    fetchAll().whenComplete((result, e) -> {
+      warmedUp = true;
+      scheduleFetch();
+    });
+  }
+
+  /**
+   * Schedule the next fetch once the previous one is over. The scheduler thread is shared, it only
+   * hands the fetches over to the fetch threads.
+   */
+  private void scheduleFetch() {
+    synchronized (this) {
+      if (running) {
+        fetchTask = taskScheduler
+            .schedule(() -> fetchAll().whenComplete((result, e) -> scheduleFetch()),
+                Instant.now().plus(properties.getInterval()));
+      }
+    }
+  }
+
+  private void add(JGitEnvironmentRepository repository) {
+    String uri = repository.getUri();
+    // Local repositories are used in place by Spring Cloud, even when cloned on start: there
+    // is nothing to fetch
+    if (uri == null || uri.contains("{") || uri.startsWith("file:")) {
+      return;
+    }
+    repository.setRefreshRate(BACKGROUND_ONLY_REFRESH_RATE);
+    Repository fetched = new Repository(repository);
+    repositories.add(fetched);
+    repositoriesBySource.put(repository, fetched);
+  }
+
+  /**
+   * @return the revision of the remote branches and tags of the repository (and of its pattern
+   * matched repositories) as of the last fetch, <code>null</code> when it is not fetched in the
+   * background or not fetched yet. A change on any branch gives a new revision.
+   */
+  public String getRevision(EnvironmentRepository environmentRepository) {
+    Repository repository = repositoriesBySource.get(environmentRepository);
+    if (repository == null || repository.revision == null) {
+      return null;
+    }
+    if (!(environmentRepository instanceof MultipleJGitEnvironmentRepository)) {
+      return repository.revision;
+    }
+    StringJoiner revision = new StringJoiner(",").add(repository.revision);
+    Map<String, ? extends JGitEnvironmentRepository> children =
+        ((MultipleJGitEnvironmentRepository) environmentRepository).getRepos();
+    for (JGitEnvironmentRepository child : children.values()) {
+      Repository fetched = repositoriesBySource.get(child);
+      if (fetched == null || fetched.revision == null) {
+        return null;
+      }
+      revision.add(fetched.revision);
+    }
+    return revision.toString();
+  }
+
+  @Override
+  public void stop() {
+    synchronized (this) {
+      running = false;
+      if (fetchTask != null) {
+        fetchTask.cancel(false);
+      }
+    }
+    executor.shutdownNow();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  private CompletableFuture<Void> fetchAll() {
+    return CompletableFuture.allOf(repositories.stream()
+        .map(repository -> CompletableFuture.runAsync(repository::fetch, executor))
+        .toArray(CompletableFuture[]::new));
+  }
+
+  @Override
+  public Health health() {
+    Health.Builder builder = warmedUp ? Health.up() : Health.outOfService();
+    Map<String, Object> details = new LinkedHashMap<>();
+    for (Repository repository : repositories) {
+      Map<String, Object> detail = new LinkedHashMap<>();
+      long lastFetch = repository.lastFetch;
+      if (lastFetch > 0) {
+        detail.put("lastFetch", Instant.ofEpochMilli(lastFetch));
+      }
+      if (repository.lastError != null) {
+        detail.put("error", repository.lastError);
+      }
+      details.put(repository.name, detail);
+    }
+    return builder.withDetail("repositories", details).build();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    // The repositories are only known once started, binding twice registers nothing new
+    meterRegistry = registry;
+    if (running) {
+      repositories.forEach(repository -> repository.bindTo(registry));
+    }
+  }
+
+  private class Repository {
+
+    private final JGitEnvironmentRepository repository;
+    private final String name;
+    private volatile long lastFetch;
+    private volatile String revision;
+    private volatile String lastError;
+    private Timer successes;
+    private Timer failures;
+
+    private Repository(JGitEnvironmentRepository repository) {
+      this.repository = repository;
+      // The name is used as a metric tag, it must not leak the credentials of the URI
+      this.name = repository.getUri().replaceFirst("//[^/@]*@", "//");
+    }
+
+    private void bindTo(MeterRegistry registry) {
+      successes = fetchTimer(registry, "success");
+      failures = fetchTimer(registry, "failure");
+      TimeGauge.builder("registry.config.fetch.staleness", this, TimeUnit.MILLISECONDS,
+          repository -> repository.lastFetch == 0 ? Double.NaN
+              : System.currentTimeMillis() - repository.lastFetch)
+          .tag("repository", name).description("Time since the last successful fetch")
+          .register(registry);
+    }
+
+    private Timer fetchTimer(MeterRegistry registry, String outcome) {
+      return Timer.builder("registry.config.fetch").tag("repository", name)
+          .tag("outcome", outcome).description("Clones and fetches of a config repository")
+          .register(registry);
+    }
+
+    private void fetch() {
+      String loggerPrefix = getLoggerPrefix("fetch");
+      long start = System.nanoTime();
+      boolean fetched = false;
+      try {
+        // The network fetch only updates the remote refs, the lookups are not held up by it
+        if (new File(repository.getBasedir(), ".git").exists()) {
+          fetchOrigin();
+        }
+        // Same lock as the Spring Cloud lookups, which check out the working tree
+        synchronized (repository) {
+          // Clones the repository when missing, otherwise checks out and merges the local copy
+          repository.setLastRefresh(System.currentTimeMillis());
+          repository.refresh(repository.getDefaultLabel());
+        }
+        revision = remoteRevision();
+        fetched = true;
+        lastError = null;
+      } catch (GitAPIException | IOException | RuntimeException e) {
+        lastError = e.getMessage();
+        logger().warn(loggerPrefix + "Unable to fetch config repository {}: {}", name,
+            e.getMessage());
+      }
+      if (fetched) {
+        lastFetch = System.currentTimeMillis();
+      }
+      Timer timer = fetched ? successes : failures;
+      if (timer != null) {
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    /**
+     * @return a digest of the remote branches and tags, which only the fetches update
+     */
+    private String remoteRevision() throws IOException {
+      try (Git git = Git.open(repository.getBasedir())) {
+        MessageDigest digest = Constants.newMessageDigest();
+        byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        RefDatabase refs = git.getRepository().getRefDatabase();
+        for (String prefix : new String[]{Constants.R_REMOTES, Constants.R_TAGS}) {
+          for (Ref ref : refs.getRefsByPrefix(prefix)) {
+            digest.update(Constants.encode(ref.getName()));
+            if (ref.getObjectId() != null) {
+              ref.getObjectId().copyRawTo(id, 0);
+              digest.update(id);
+            }
+          }
+        }
+        return ObjectId.fromRaw(digest.digest()).name();
+      }
+    }
+
+    /**
+     * Fetch the remote like Spring Cloud does, but throw the errors it would only log.
+     */
+    private void fetchOrigin() throws GitAPIException, IOException {
+      try (Git git = Git.open(repository.getBasedir())) {
+        FetchCommand fetch = git.fetch().setRemote("origin").setTagOpt(TagOpt.FETCH_TAGS)
+            .setRemoveDeletedRefs(repository.isDeleteUntrackedBranches())
+            .setTimeout(repository.getTimeout());
+        if (repository.getTransportConfigCallback() != null) {
+          fetch.setTransportConfigCallback(repository.getTransportConfigCallback());
+        }
+        CredentialsProvider credentialsProvider = credentialsProviderFactory
+            .createFor(repository.getUri(), repository.getUsername(), repository.getPassword(),
+                repository.getPassphrase(), repository.isSkipSslValidation());
+        if (credentialsProvider != null) {
+          fetch.setCredentialsProvider(credentialsProvider);
+        }
+        fetch.call();
+      }
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
+
+/**
+ * Decrypted <code>{cipher}</code> values, keyed by a SHA-256 hash of the cipher text and of the
+ * encryptor keys (application, profiles, key alias) it was decrypted with.
+ * <p>
+ * The plain text is held in direct buffers, outside of the heap dumps, and overwritten with zeros
+ * when the entry is dropped: on expiry, on overflow, and when the server configuration is
+ * refreshed, which is how a key rotation is applied. Concurrent misses on the same value share a
+ * single decryption. Failed decryptions are not cached.
+ */
+public class DecryptionCache implements MeterBinder, HasLogger {
+
+  private final RegistryProperties.ConfigDecrypt properties;
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder decryptCount = new LongAdder();
+  private final LongAdder decryptNanos = new LongAdder();
+
+  public DecryptionCache(RegistryProperties registryProperties) {
+    this.properties = registryProperties.getConfig().getDecrypt();
+  }
+
+  /**
+   * @param keys the keys given to the text encryptor locator
+   * @param decryptor decrypts the value on a miss
+   * @return the plain text
+   */
+  public String get(Map<String, String> keys, String cipherText, Supplier<String> decryptor) {
+    Key key = Key.of(keys, cipherText);
+    long now = System.nanoTime();
+    Entry entry = entries.computeIfAbsent(key, k -> new Entry(now));
+    if (!entry.isValid(now, properties.getTimeToLive().toNanos())) {
+      if (entries.remove(key, entry)) {
+        entry.wipe();
+      }
+      Entry created = new Entry(now);
+      entry = entries.merge(key, created,
+          (current, ignored) -> current.isValid(now, properties.getTimeToLive().toNanos())
+              ? current : created);
+    }
+    String plainText = entry.get(decryptor);
+    evictOverflow();
+    return plainText;
+  }
+
+  private void evictOverflow() {
+    while (entries.size() > properties.getMaxEntries()) {
+      entries.entrySet().stream()
+          .min((a, b) -> Long.compare(a.getValue().createdAt, b.getValue().createdAt))
+          .ifPresent(oldest -> {
+            if (entries.remove(oldest.getKey(), oldest.getValue())) {
+              oldest.getValue().wipe();
+            }
+          });
+    }
+  }
+
+  /**
+   * Drop and wipe every decrypted value.
+   */
+  public void invalidate() {
+    logger().debug(getLoggerPrefix("invalidate") + "Dropping {} decrypted values",
+        entries.size());
+    entries.keySet().forEach(key -> {
+      Entry entry = entries.remove(key);
+      if (entry != null) {
+        entry.wipe();
+      }
+    });
+  }
+
+  @EventListener
+  public void onRefresh(RefreshScopeRefreshedEvent event) {
+    invalidate();
+  }
+
+  @EventListener
+  public void onEnvironmentChange(EnvironmentChangeEvent event) {
+    invalidate();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    requestCounter(registry, "hit", hits);
+    requestCounter(registry, "miss", misses);
+    Gauge.builder("registry.config.decrypt.cache.hit.ratio", this, cache -> {
+      double total = cache.hits.sum() + cache.misses.sum();
+      return total == 0 ? Double.NaN : cache.hits.sum() / total;
+    }).description("Share of the decrypted values served from the cache").register(registry);
+    FunctionTimer.builder("registry.config.decrypt", this, cache -> cache.decryptCount.sum(),
+        cache -> cache.decryptNanos.sum(), TimeUnit.NANOSECONDS)
+        .description("Decryptions of {cipher} values").register(registry);
+    Gauge.builder("registry.config.decrypt.cache.size", entries, Map::size)
+        .description("Decrypted values in the cache").register(registry);
+  }
+
+  private void requestCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.config.decrypt.cache.requests", counter, LongAdder::sum)
+        .tag("result", result).description("Decryption requests by cache outcome")
+        .register(registry);
+  }
+
+  private static class Key {
+
+    private final byte[] hash;
+    private final int hashCode;
+
+    private Key(byte[] hash) {
+      this.hash = hash;
+      this.hashCode = Arrays.hashCode(hash);
+    }
+
+    private static Key of(Map<String, String> keys, String cipherText) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (Map.Entry<String, String> key : new TreeMap<>(keys).entrySet()) {
+          digest.update(key.getKey().getBytes(StandardCharsets.UTF_8));
+          digest.update((byte) '=');
+          digest.update(String.valueOf(key.getValue()).getBytes(StandardCharsets.UTF_8));
+          digest.update((byte) 0);
+        }
+        digest.update(cipherText.getBytes(StandardCharsets.UTF_8));
+        return new Key(digest.digest());
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      return Arrays.equals(hash, ((Key) o).hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  private class Entry {
+
+    private final long createdAt;
+    private ByteBuffer plainText;
+    private boolean wiped;
+
+    private Entry(long createdAt) {
+      this.createdAt = createdAt;
+    }
+
+    private boolean isValid(long now, long timeToLive) {
+      return now - createdAt < timeToLive;
+    }
+
+    private synchronized String get(Supplier<String> decryptor) {
+      if (plainText != null) {
+        hits.increment();
+        byte[] bytes = new byte[plainText.remaining()];
+        plainText.duplicate().get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        Arrays.fill(bytes, (byte) 0);
+        return value;
+      }
+      misses.increment();
+      long start = System.nanoTime();
+      String value;
+      try {
+        value = decryptor.get();
+      } finally {
+        decryptCount.increment();
+        decryptNanos.add(System.nanoTime() - start);
+      }
+      // A wiped entry was dropped while decrypting, its value must not be kept
+      if (!wiped && value != null) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        plainText = ByteBuffer.allocateDirect(bytes.length);
+        plainText.put(bytes).flip();
+        Arrays.fill(bytes, (byte) 0);
+      }
+      return value;
+    }
+
+    private synchronized void wipe() {
+      wiped = true;
+      if (plainText != null) {
+        plainText.clear();
+        while (plainText.hasRemaining()) {
+          plainText.put((byte) 0);
+        }
+        plainText = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.configserver;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.cloud.config.environment.Environment;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
+
+/**
+ * Environments resolved by the config server, per application, profile and label.
+ * <p>
+ * An entry is served as long as the backend revision it was resolved from is unchanged and its
+ * time to live is not over. Concurrent misses on the same key share a single load. The whole
+ * cache is dropped when the server configuration is refreshed.
+ * <p>
+ * The entries served to a thread can be recorded as {@link Token}s, so that what was built from
+ * them (a serialized response) is only reused while they are current.
+ */
+public class EnvironmentCache implements MeterBinder, HasLogger {
+
+  private final RegistryProperties.ConfigCache properties;
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+  private final ThreadLocal<List<Token>> recorded = new ThreadLocal<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder loadCount = new LongAdder();
+  private final LongAdder loadNanos = new LongAdder();
+
+  public EnvironmentCache(RegistryProperties registryProperties) {
+    this.properties = registryProperties.getConfig().getCache();
+  }
+
+  /**
+   * @param revision the current backend revision, <code>null</code> when unknown: the entry is
+   * then only bounded by its time to live
+   * @param loader resolves the environment on a miss
+   * @return a copy of the cached environment, the property sources are shared
+   */
+  public Environment get(String application, String profile, String label,
+      boolean includeOrigin, Supplier<String> revision, Supplier<Environment> loader) {
+    Key key = new Key(application, profile, label, includeOrigin);
+    String currentRevision = revision.get();
+    long now = System.nanoTime();
+    Entry entry = entries.get(key);
+    if (entry == null || !entry
+        .isValid(currentRevision, now, properties.getTimeToLive().toNanos())) {
+      Entry created = new Entry(currentRevision, now);
+      entry = entries.compute(key, (k, current) -> current != null && current
+          .isValid(currentRevision, now, properties.getTimeToLive().toNanos()) ? current
+          : created);
+      if (entry == created) {
+        misses.increment();
+        evictOverflow();
+        record(new Token(key, created, revision));
+        return copy(load(key, created, loader));
+      }
+    }
+    hits.increment();
+    record(new Token(key, entry, revision));
+    try {
+      return copy(entry.environment.join());
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Start collecting the entries served to the current thread, until {@link #stopRecording()}.
+   */
+  public void startRecording() {
+    recorded.set(new ArrayList<>());
+  }
+
+  /**
+   * @return the entries served to the current thread since {@link #startRecording()}
+   */
+  public List<Token> stopRecording() {
+    List<Token> tokens = recorded.get();
+    recorded.remove();
+    return tokens == null ? Collections.emptyList() : tokens;
+  }
+
+  private void record(Token token) {
+    List<Token> tokens = recorded.get();
+    if (tokens != null) {
+      tokens.add(token);
+    }
+  }
+
+  /**
+   * @return <code>true</code> while the entry of the token would still be served, which checks
+   * the backend revision
+   */
+  public boolean isCurrent(Token token) {
+    Entry entry = entries.get(token.key);
+    return entry == token.entry && entry.environment.isDone() && entry
+        .isValid(token.revision.get(), System.nanoTime(), properties.getTimeToLive().toNanos());
+  }
+
+  private Environment load(Key key, Entry entry, Supplier<Environment> loader) {
+    long start = System.nanoTime();
+    try {
+      Environment environment = loader.get();
+      entry.environment.complete(environment);
+      return environment;
+    } catch (RuntimeException e) {
+      entries.remove(key, entry);
+      entry.environment.completeExceptionally(e);
+      throw e;
+    } finally {
+      loadCount.increment();
+      loadNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  private void evictOverflow() {
+    while (entries.size() > properties.getMaxEntries()) {
+      entries.entrySet().stream()
+          .min((a, b) -> Long.compare(a.getValue().loadedAt, b.getValue().loadedAt))
+          .ifPresent(oldest -> entries.remove(oldest.getKey(), oldest.getValue()));
+    }
+  }
+
+  /**
+   * Drop every cached environment.
+   */
+  public void invalidate() {
+    logger().debug(getLoggerPrefix("invalidate") + "Dropping {} cached environments",
+        entries.size());
+    entries.clear();
+  }
+
+  @EventListener
+  public void onRefresh(RefreshScopeRefreshedEvent event) {
+    invalidate();
+  }
+
+  @EventListener
+  public void onEnvironmentChange(EnvironmentChangeEvent event) {
+    invalidate();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    requestCounter(registry, "hit", hits);
+    requestCounter(registry, "miss", misses);
+    FunctionTimer.builder("registry.config.cache.loads", this, cache -> cache.loadCount.sum(),
+        cache -> cache.loadNanos.sum(), TimeUnit.NANOSECONDS)
+        .description("Environments resolved by the config server backend").register(registry);
+    Gauge.builder("registry.config.cache.size", entries, Map::size)
+        .description("Environments in the cache").register(registry);
+  }
+
+  private void requestCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.config.cache.requests", counter, LongAdder::sum)
+        .tag("result", result).description("Environment requests by cache outcome")
+        .register(registry);
+  }
+
+  private static Environment copy(Environment environment) {
+    Environment copy = new Environment(environment);
+    copy.addAll(environment.getPropertySources());
+    return copy;
+  }
+
+  /**
+   * A cached environment served to a request.
+   */
+  public static final class Token {
+
+    private final Key key;
+    private final Entry entry;
+    private final Supplier<String> revision;
+
+    private Token(Key key, Entry entry, Supplier<String> revision) {
+      this.key = key;
+      this.entry = entry;
+      this.revision = revision;
+    }
+  }
+
+  private static class Key {
+
+    private final String application;
+    private final String profile;
+    private final String label;
+    private final boolean includeOrigin;
+
+    private Key(String application, String profile, String label, boolean includeOrigin) {
+      this.application = application;
+      this.profile = profile;
+      this.label = label;
+      this.includeOrigin = includeOrigin;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key key = (Key) o;
+      return includeOrigin == key.includeOrigin && Objects.equals(application, key.application)
+          && Objects.equals(profile, key.profile) && Objects.equals(label, key.label);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(application, profile, label, includeOrigin);
+    }
+  }
+
+  private static class Entry {
+
+    private final String revision;
+    private final long loadedAt;
+    private final CompletableFuture<Environment> environment = new CompletableFuture<>();
+
+    private Entry(String revision, long loadedAt) {
+      this.revision = revision;
+      this.loadedAt = loadedAt;
+    }
+
+    private boolean isValid(String currentRevision, long now, long timeToLive) {
+      return Objects.equals(revision, currentRevision) && now - loadedAt < timeToLive
+          && !environment.isCompletedExceptionally();
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.dns;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Host name resolution shared by the Eureka client address lookup and the peer nodes.
+ * <p>
+ * Resolved names are served from memory for <code>registry.dns.ttl</code>, unknown names for
+ * <code>registry.dns.negative-ttl</code>. Concurrent lookups of the same name share a single name
+ * server query. Once expired, a resolved name keeps being served while it is looked up again in
+ * the background, and a failed lookup keeps the last known addresses: a slow or flaky name server
+ * never delays a caller holding a previous answer. Entries about to expire are refreshed
+ * periodically, those not read for <code>registry.dns.idle-timeout</code> are dropped.
+ */
+@Component
+public class DnsCache implements MeterBinder, DisposableBean, HasLogger {
+
+  private final RegistryProperties.Dns properties;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder lookupCount = new LongAdder();
+  private final LongAdder lookupNanos = new LongAdder();
+
+  public DnsCache(RegistryProperties registryProperties) {
+    this.properties = registryProperties.getDns();
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("dns-cache-");
+    threadFactory.setDaemon(true);
+    this.executor = Executors.newScheduledThreadPool(2, threadFactory);
+    long refreshInterval = properties.getRefreshInterval().toMillis();
+    executor.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Resolve a host name, waiting at most <code>registry.dns.lookup-timeout</code>.
+   *
+   * @return the addresses of the host, never empty
+   * @throws UnknownHostException if the host is unknown or the name server did not answer in time
+   */
+  public List<InetAddress> resolve(String host) throws UnknownHostException {
+    try {
+      return resolveAsync(host)
+          .get(properties.getLookupTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UnknownHostException) {
+        throw (UnknownHostException) e.getCause();
+      }
+      throw new UnknownHostException(host + ": " + e.getCause().getMessage());
+    } catch (TimeoutException e) {
+      throw new UnknownHostException(host + ": lookup timed out");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException(host + ": lookup interrupted");
+    }
+  }
+
+  /**
+   * Resolve a host name without blocking.
+   *
+   * @return a future of the addresses of the host, owned by the caller (completing it does not
+   * affect other callers), failed with an {@link UnknownHostException} if the host is unknown
+   */
+  public CompletableFuture<List<InetAddress>> resolveAsync(String host) {
+    long now = System.nanoTime();
+    Entry entry = entries.get(host);
+    if (entry != null) {
+      entry.lastAccess = now;
+      if (now - entry.expiresAt < 0) {
+        if (entry.isNegative()) {
+          negativeHits.increment();
+          return CompletableFuture.failedFuture(new UnknownHostException(host));
+        }
+        hits.increment();
+        return CompletableFuture.completedFuture(entry.addresses);
+      }
+      if (!entry.isNegative()) {
+        staleHits.increment();
+        lookup(host);
+        return CompletableFuture.completedFuture(entry.addresses);
+      }
+    }
+    misses.increment();
+    return lookup(host).thenCompose(result -> result.isNegative() ? CompletableFuture
+        .failedFuture(new UnknownHostException(host))
+        : CompletableFuture.completedFuture(result.addresses));
+  }
+
+  /**
+   * Drop the cached answer for a host, the next resolution queries the name server.
+   */
+  public void evict(String host) {
+    entries.remove(host);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    requestCounter(registry, "hit", hits);
+    requestCounter(registry, "stale", staleHits);
+    requestCounter(registry, "negative", negativeHits);
+    requestCounter(registry, "miss", misses);
+    FunctionCounter.builder("registry.dns.lookups.failed", failures, LongAdder::sum)
+        .description("Name server lookups that failed").register(registry);
+    FunctionTimer.builder("registry.dns.lookups", this, cache -> cache.lookupCount.sum(),
+        cache -> cache.lookupNanos.sum(), TimeUnit.NANOSECONDS)
+        .description("Name server lookups").register(registry);
+    Gauge.builder("registry.dns.cache.size", entries, Map::size)
+        .description("Host names in the cache").register(registry);
+    Gauge.builder("registry.dns.cache.hit.ratio", this, DnsCache::hitRatio)
+        .description("Resolutions answered from the cache").register(registry);
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  private void requestCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.dns.cache.requests", counter, LongAdder::sum)
+        .tag("result", result).description("Host name resolutions by cache outcome")
+        .register(registry);
+  }
+
+  private double hitRatio() {
+    double cached = hits.sum() + staleHits.sum() + negativeHits.sum();
+    double total = cached + misses.sum();
+    return total == 0 ? Double.NaN : cached / total;
+  }
+
+  /**
+   * Start a name server lookup of the host, unless one is already running.
+   */
+  private CompletableFuture<Entry> lookup(String host) {
+    CompletableFuture<Entry> created = new CompletableFuture<>();
+    CompletableFuture<Entry> running = lookups.putIfAbsent(host, created);
+    if (running != null) {
+      return running;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          Entry result = query(host);
+          entries.put(host, result);
+          created.complete(result);
+        } catch (RuntimeException e) {
+          created.completeExceptionally(e);
+        } finally {
+          lookups.remove(host, created);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      lookups.remove(host, created);
+      created.completeExceptionally(e);
+    }
+    return created;
+  }
+
+  private Entry query(String host) {
+    long start = System.nanoTime();
+    Entry previous = entries.get(host);
+    long lastAccess = previous == null ? start : previous.lastAccess;
+    try {
+      List<InetAddress> addresses = Collections
+          .unmodifiableList(Arrays.asList(InetAddress.getAllByName(host)));
+      return new Entry(addresses, System.nanoTime() + properties.getTtl().toNanos(),
+          lastAccess);
+    } catch (UnknownHostException e) {
+      failures.increment();
+      logger().debug(getLoggerPrefix("query") + "Unable to resolve {}: {}", host,
+          e.getMessage());
+      // Keep serving the last known addresses, the name server is retried after negativeTtl
+      return new Entry(previous == null ? Collections.emptyList() : previous.addresses,
+          System.nanoTime() + properties.getNegativeTtl().toNanos(), lastAccess);
+    } finally {
+      lookupCount.increment();
+      lookupNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  private void refresh() {
+    long now = System.nanoTime();
+    long horizon = now + properties.getRefreshInterval().toNanos();
+    long idleTimeout = properties.getIdleTimeout().toNanos();
+    entries.forEach((host, entry) -> {
+      if (now - entry.lastAccess > idleTimeout) {
+        entries.remove(host, entry);
+      } else if (!entry.isNegative() && horizon - entry.expiresAt >= 0) {
+        lookup(host);
+      }
+    });
+  }
+
+  private static final class Entry {
+
+    private final List<InetAddress> addresses;
+    private final long expiresAt;
+    private volatile long lastAccess;
+
+    private Entry(List<InetAddress> addresses, long expiresAt, long lastAccess) {
+      this.addresses = addresses;
+      this.expiresAt = expiresAt;
+      this.lastAccess = lastAccess;
+    }
+
+    private boolean isNegative() {
+      return addresses.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.endpoint;
+
+import java.time.Duration;
+import org.jhapy.dto.serviceQuery.ServiceResult;
+import org.jhapy.registry.configserver.ConfigChangeWatcher;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Controller for waiting on config changes.
+ */
+@RestController
+@RequestMapping("/api")
+@ConditionalOnProperty(prefix = "registry.config.watch", name = "enabled", matchIfMissing = true)
+public class ConfigWatchResource {
+
+  private final ConfigChangeWatcher configChangeWatcher;
+
+  public ConfigWatchResource(ConfigChangeWatcher configChangeWatcher) {
+    this.configChangeWatcher = configChangeWatcher;
+  }
+
+  /**
+   * GET  /config/watch/{application}/{profile} : wait for the backend revision of an environment
+   * to differ from <code>version</code>
+   * <p>
+   * Answers <code>{"version": ...}</code> with the new revision, or a 304 once the timeout
+   * (milliseconds, bounded by <code>registry.config.watch.timeout</code>) is over. Without
+   * <code>version</code>, the current revision is returned right away.
+   */
+  @GetMapping(value = "/config/watch/{application}/{profile}", produces = "application/json")
+  public DeferredResult<ResponseEntity<ServiceResult>> watch(@PathVariable String application,
+      @PathVariable String profile, @RequestParam(required = false) String label,
+      @RequestParam(required = false) String version,
+      @RequestParam(required = false) Long timeout) {
+    return configChangeWatcher.watch(application, profile, label, version,
+        timeout == null ? null : Duration.ofMillis(timeout));
+  }
+}
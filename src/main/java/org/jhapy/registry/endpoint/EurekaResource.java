@@ -20,10 +20,11 @@ package org.jhapy.registry.endpoint;
 
 import static java.util.stream.Collectors.toMap;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.netflix.appinfo.InstanceInfo;
 import com.netflix.appinfo.InstanceInfo.PortType;
 import com.netflix.config.ConfigurationManager;
-import com.netflix.discovery.shared.Application;
 import com.netflix.discovery.shared.Pair;
 import com.netflix.eureka.EurekaServerContext;
 import com.netflix.eureka.EurekaServerContextHolder;
@@ -32,9 +33,6 @@ import com.netflix.eureka.registry.PeerAwareInstanceRegistryImpl;
 import com.netflix.eureka.resources.StatusResource;
 import com.netflix.eureka.util.StatusInfo;
 import java.io.File;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -43,20 +41,30 @@ import java.util.Map;
 import java.util.stream.Collectors;
 import org.jhapy.commons.endpoint.BaseEndpoint;
 import org.jhapy.commons.utils.OrikaBeanMapper;
-import org.jhapy.dto.registry.EurekaApplication;
-import org.jhapy.dto.registry.EurekaApplicationInstance;
-import org.jhapy.dto.registry.EurekaInfo;
 import org.jhapy.dto.registry.EurekaStatus;
 import org.jhapy.dto.serviceQuery.ServiceResult;
+import org.jhapy.registry.eureka.RegistryEvent;
+import org.jhapy.registry.eureka.RegistryEventBroadcaster;
+import org.jhapy.registry.eureka.RegistryEventLog;
+import org.jhapy.registry.eureka.RegistryQuery;
+import org.jhapy.registry.eureka.RegistrySnapshot;
+import org.jhapy.registry.eureka.RegistrySnapshotHolder;
+import org.jhapy.registry.eureka.ReplicaMonitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * Controller for viewing Eureka data.
@@ -65,40 +73,114 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api")
 public class EurekaResource {
 
+    private static final int MAX_HISTORY_LIMIT = 10000;
+
     private final Logger log = LoggerFactory.getLogger(EurekaResource.class);
 
+    private final RegistrySnapshotHolder registrySnapshotHolder;
+
+    private final RegistryEventBroadcaster registryEventBroadcaster;
+
+    private final RegistryEventLog registryEventLog;
+
+    private final ReplicaMonitor replicaMonitor;
+
+    private final ObjectMapper objectMapper;
+
+    public EurekaResource(RegistrySnapshotHolder registrySnapshotHolder,
+        RegistryEventBroadcaster registryEventBroadcaster, RegistryEventLog registryEventLog,
+        ReplicaMonitor replicaMonitor, ObjectMapper objectMapper) {
+        this.registrySnapshotHolder = registrySnapshotHolder;
+        this.registryEventBroadcaster = registryEventBroadcaster;
+        this.registryEventLog = registryEventLog;
+        this.replicaMonitor = replicaMonitor;
+        this.objectMapper = objectMapper;
+    }
+
     /**
      * GET  /eureka/applications : get Eureka applications information
+     * <p>
+     * The payload is the pre-serialized registry snapshot, shared between all callers.
      */
     @PostMapping(value = "/eureka/applications", produces = "application/json")
-    public ResponseEntity<ServiceResult> eureka() {
-        EurekaInfo eurekaVM = new EurekaInfo();
-        eurekaVM.setApplicationList(getApplications());
-        return ResponseEntity.ok(new ServiceResult( eurekaVM ));
-    }
-
-    private List<EurekaApplication> getApplications() {
-        List<Application> sortedApplications = getRegistry().getSortedApplications();
-        List<EurekaApplication> apps = new ArrayList<>();
-        for (Application app : sortedApplications) {
-            EurekaApplication eurekaApplication = new EurekaApplication();
-            eurekaApplication.setName(app.getName());
-
-            List<EurekaApplicationInstance> instances = new ArrayList<>();
-            for (InstanceInfo info : app.getInstances()) {
-                EurekaApplicationInstance eurekaApplicationInstance = new EurekaApplicationInstance();
-                eurekaApplicationInstance.setInstanceId( info.getInstanceId());
-                eurekaApplicationInstance.setHomePageUrl(info.getHomePageUrl());
-                eurekaApplicationInstance.setHealthCheckUrl(info.getHealthCheckUrl());
-                eurekaApplicationInstance.setStatusPageUrl( info.getStatusPageUrl());
-                eurekaApplicationInstance.setStatus(info.getStatus().name());
-                eurekaApplicationInstance.setMetadata(info.getMetadata());
-                instances.add(eurekaApplicationInstance);
+    public ResponseEntity<byte[]> eureka() {
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(registrySnapshotHolder.current().getPayload());
+    }
+
+    /**
+     * GET  /eureka/applications : get Eureka applications information
+     * <p>
+     * With <code>since</code>, only the instances added, changed and removed since that snapshot
+     * version are returned. With any of the <code>app</code> (name prefix), <code>status</code>,
+     * <code>metadata</code> (<code>key:value</code>), <code>fields=summary</code> (no metadata),
+     * <code>cursor</code> or <code>size</code> parameters, a filtered page is returned instead.
+     * The ETag is the snapshot version, a 304 is returned when the caller is up to date.
+     */
+    @GetMapping(value = "/eureka/applications", produces = "application/json")
+    public ResponseEntity<?> getEureka(@RequestParam(required = false) Long since,
+        @RequestParam(required = false) String app,
+        @RequestParam(required = false) String status,
+        @RequestParam(required = false) List<String> metadata,
+        @RequestParam(required = false) String fields,
+        @RequestParam(required = false) String cursor,
+        @RequestParam(required = false) Integer size,
+        WebRequest webRequest) {
+        boolean filtered = app != null || status != null || metadata != null || fields != null
+            || cursor != null || size != null;
+        if (since != null && filtered) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                "'since' cannot be combined with filters or pagination");
+        }
+        RegistrySnapshot snapshot = registrySnapshotHolder.current();
+        if (webRequest.checkNotModified(snapshot.getEtag())) {
+            return null;
+        }
+        if (since != null) {
+            return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .body(new ServiceResult(registrySnapshotHolder.delta(snapshot, since)));
+        }
+        if (filtered) {
+            RegistryQuery query;
+            try {
+                query = new RegistryQuery(app, status, metadata, !"summary".equals(fields), cursor,
+                    size);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
             }
-            eurekaApplication.setInstances( instances );
-            apps.add( eurekaApplication );
+            return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .body(new ServiceResult(snapshot.query(query)));
         }
-        return apps;
+        return ResponseEntity.ok()
+            .eTag(snapshot.getEtag())
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(snapshot.getPayload());
+    }
+
+    /**
+     * GET  /eureka/events : stream registrations, cancellations, renewals of unknown instances
+     * and status changes as Server-Sent Events
+     */
+    @GetMapping(value = "/eureka/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter events() {
+        return registryEventBroadcaster.subscribe();
+    }
+
+    /**
+     * GET  /eureka/history : get the registry events of a time range (epoch milliseconds) from
+     * the on-disk history, optionally for a single application
+     */
+    @GetMapping(value = "/eureka/history", produces = "application/json")
+    public ResponseEntity<ServiceResult> history(@RequestParam(required = false) Long from,
+        @RequestParam(required = false) Long to,
+        @RequestParam(required = false) String app,
+        @RequestParam(defaultValue = "1000") int limit) {
+        List<RegistryEvent> events = registryEventLog.query(from == null ? 0 : from,
+            to == null ? Long.MAX_VALUE : to, app, Math.min(Math.max(limit, 1), MAX_HISTORY_LIMIT));
+        return ResponseEntity.ok(new ServiceResult( events ));
     }
 
     /**
@@ -106,6 +188,18 @@ public class EurekaResource {
      */
     @PostMapping(value = "/eureka/lastn", produces = "application/json")
     public ResponseEntity<ServiceResult> lastn() {
+        return ResponseEntity.ok(new ServiceResult( collectLastn() ));
+    }
+
+    /**
+     * GET  /eureka/lastn : get Eureka registrations, with an ETag computed from the content
+     */
+    @GetMapping(value = "/eureka/lastn", produces = "application/json")
+    public ResponseEntity<byte[]> getLastn(WebRequest webRequest) throws JsonProcessingException {
+        return withContentEtag(new ServiceResult( collectLastn() ), webRequest);
+    }
+
+    private Map<String, List<String[]>> collectLastn() {
         Map<String, List<String[]>> lastn = new HashMap<>();
         PeerAwareInstanceRegistryImpl registry = (PeerAwareInstanceRegistryImpl) getRegistry();
         List<String[]> canceledMap = registry.getLastNCanceledInstances()
@@ -116,7 +210,7 @@ public class EurekaResource {
             .stream().map(longStringPair -> new String[] { longStringPair.first().toString(), longStringPair.second() }).collect(
                 Collectors.toList());
         lastn.put("registered", registeredMap);
-        return ResponseEntity.ok(new ServiceResult( lastn ));
+        return lastn;
     }
 
     /**
@@ -124,20 +218,55 @@ public class EurekaResource {
      */
     @PostMapping(value = "/eureka/replicas",produces = "application/json")
     public ResponseEntity<ServiceResult> replicas() {
-        List<String> replicas = new ArrayList<>();
-        getServerContext().getPeerEurekaNodes().getPeerNodesView().forEach(
-            node -> {
-                try {
-                    // The URL is parsed in order to remove login/password information
-                    URI uri = new URI(node.getServiceUrl());
-                    replicas.add(uri.getHost() + ":" + uri.getPort());
-                } catch (URISyntaxException e) {
-                    log.warn("Could not parse peer Eureka node URL: {}", e.getMessage());
-                }
-            }
-        );
+        return ResponseEntity.ok(new ServiceResult( collectReplicas() ));
+    }
+
+    /**
+     * GET  /eureka/replicas : get Eureka replicas, with an ETag computed from the content
+     */
+    @GetMapping(value = "/eureka/replicas", produces = "application/json")
+    public ResponseEntity<byte[]> getReplicas(WebRequest webRequest)
+        throws JsonProcessingException {
+        return withContentEtag(new ServiceResult( collectReplicas() ), webRequest);
+    }
 
-        return ResponseEntity.ok(new ServiceResult( replicas ));
+    private List<String> collectReplicas() {
+        return replicaMonitor.getAddresses();
+    }
+
+    /**
+     * GET  /eureka/replicas/health : get the health of the Eureka replicas
+     * <p>
+     * Each peer is reported with its status, probe round-trip latency, replication queue depth,
+     * last successful replication and failure counts. The peers are probed in the background,
+     * this returns the result of their last probe.
+     */
+    @PostMapping(value = "/eureka/replicas/health", produces = "application/json")
+    public ResponseEntity<ServiceResult> replicasHealth() {
+        return ResponseEntity.ok(new ServiceResult( replicaMonitor.getReplicas() ));
+    }
+
+    /**
+     * GET  /eureka/replicas/health : get the health of the Eureka replicas, with an ETag
+     * computed from the content
+     */
+    @GetMapping(value = "/eureka/replicas/health", produces = "application/json")
+    public ResponseEntity<byte[]> getReplicasHealth(WebRequest webRequest)
+        throws JsonProcessingException {
+        return withContentEtag(new ServiceResult( replicaMonitor.getReplicas() ), webRequest);
+    }
+
+    private ResponseEntity<byte[]> withContentEtag(ServiceResult result, WebRequest webRequest)
+        throws JsonProcessingException {
+        byte[] body = objectMapper.writeValueAsBytes(result);
+        String etag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        return ResponseEntity.ok()
+            .eTag(etag)
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(body);
     }
 
     /**
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.endpoint;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <code>http.server.requests</code> timers grouped by uri and method, and by status.
+ * <p>
+ * The groups are filled once from the registry, then kept up to date by the registry meter
+ * added and removed listeners, so reading them costs the size of the result instead of a scan of
+ * the registry per uri, method and status.
+ */
+final class HttpServerRequestsIndex {
+
+  static final String METER_NAME = "http.server.requests";
+
+  private final Map<String, Map<String, Set<Timer>>> byUriAndMethod = new ConcurrentHashMap<>();
+  private final Map<String, Set<Timer>> byStatus = new ConcurrentHashMap<>();
+  private final Set<Timer> all = ConcurrentHashMap.newKeySet();
+
+  HttpServerRequestsIndex(MeterRegistry meterRegistry) {
+    meterRegistry.config().onMeterAdded(this::add).onMeterRemoved(this::remove);
+    meterRegistry.find(METER_NAME).timers().forEach(this::add);
+  }
+
+  /**
+   * @return the timers by uri, then by method
+   */
+  Map<String, Map<String, Set<Timer>>> byUriAndMethod() {
+    return Collections.unmodifiableMap(byUriAndMethod);
+  }
+
+  /**
+   * @return the timers by status
+   */
+  Map<String, Set<Timer>> byStatus() {
+    return Collections.unmodifiableMap(byStatus);
+  }
+
+  Collection<Timer> all() {
+    return Collections.unmodifiableSet(all);
+  }
+
+  private void add(Meter meter) {
+    if (!isIndexed(meter) || !all.add((Timer) meter)) {
+      return;
+    }
+    Timer timer = (Timer) meter;
+    byUriAndMethod.computeIfAbsent(tag(timer, "uri"), uri -> new ConcurrentHashMap<>())
+        .computeIfAbsent(tag(timer, "method"), method -> ConcurrentHashMap.newKeySet())
+        .add(timer);
+    byStatus.computeIfAbsent(tag(timer, "status"), status -> ConcurrentHashMap.newKeySet())
+        .add(timer);
+  }
+
+  private void remove(Meter meter) {
+    if (!isIndexed(meter) || !all.remove(meter)) {
+      return;
+    }
+    Map<String, Set<Timer>> byMethod = byUriAndMethod.get(tag(meter, "uri"));
+    if (byMethod != null) {
+      Set<Timer> timers = byMethod.get(tag(meter, "method"));
+      if (timers != null) {
+        timers.remove(meter);
+      }
+    }
+    Set<Timer> timers = byStatus.get(tag(meter, "status"));
+    if (timers != null) {
+      timers.remove(meter);
+    }
+  }
+
+  private static boolean isIndexed(Meter meter) {
+    return meter instanceof Timer && METER_NAME.equals(meter.getId().getName());
+  }
+
+  private static String tag(Meter meter, String key) {
+    String value = meter.getId().getTag(key);
+    return value == null ? "" : value;
+  }
+}
@@ -18,34 +18,68 @@
 
 package org.jhapy.registry.endpoint;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.TimeGauge;
 import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
 import io.micrometer.core.instrument.distribution.ValueAtPercentile;
-import io.micrometer.core.instrument.search.Search;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import org.jhapy.registry.config.RegistryProperties;
+import org.jhapy.registry.eureka.RegistryMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
 import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
 import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
 
 /**
  * <p>JHapyMetricsEndpoint class.</p>
+ * <p>
+ * Each section is written once per freshness window straight to JSON with a {@link
+ * JsonGenerator}, and only when it is requested.
  */
 @WebEndpoint(id = "jhametrics")
 public class JHapyMetricsEndpoint {
 
+  private static final Collection<String> CRUD_OPERATIONS = Arrays
+      .asList("GET", "POST", "PUT", "DELETE");
+
+  /**
+   * Short names accepted for sections in the <code>include</code> parameter and the path.
+   */
+  private static final Map<String, String> SECTION_ALIASES = Map
+      .of("http", "http.server.requests", "gc", "garbageCollector", "process", "processMetrics");
+
   private final MeterRegistry meterRegistry;
 
+  private final HttpServerRequestsIndex httpServerRequests;
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  private final Map<String, SectionCache<byte[]>> sections = new LinkedHashMap<>();
+
   private final Logger logger = LoggerFactory.getLogger(JHapyMetricsEndpoint.class);
 
   /**
@@ -57,273 +91,476 @@ public class JHapyMetricsEndpoint {
    * <p>Constructor for JHapyMetricsEndpoint.</p>
    *
    * @param meterRegistry a {@link MeterRegistry} object.
+   * @param metricsProperties the freshness of the computed sections.
    */
-  public JHapyMetricsEndpoint(MeterRegistry meterRegistry) {
+  public JHapyMetricsEndpoint(MeterRegistry meterRegistry,
+      RegistryProperties.Metrics metricsProperties) {
     this.meterRegistry = meterRegistry;
-  }
-
-  /**
-   * micrometer-spring-legacy GET /management/jha-metrics
-   * <p>
-   * Give metrics displayed on Metrics page
-   *
-   * @return a Map with a String defining a category of metrics as Key and another Map containing
-   * metrics related to this category as Value
-   */
-  @ReadOperation
-  public Map<String, Map> allMetrics() {
+    this.httpServerRequests = new HttpServerRequestsIndex(meterRegistry);
 
-    Map<String, Map> results = new HashMap<>();
     // JVM stats
-    results.put("jvm", this.jvmMemoryMetrics());
+    addSection("jvm", this::jvmMemoryMetrics, metricsProperties);
     // HTTP requests stats
-    results.put("http.server.requests", this.httpRequestsMetrics());
+    addSection("http.server.requests", this::httpRequestsMetrics, metricsProperties);
     // Cache stats
-    results.put("cache", this.cacheMetrics());
+    addSection("cache", this::cacheMetrics, metricsProperties);
     // Service stats
-    results.put("services", this.serviceMetrics());
+    addSection("services", this::serviceMetrics, metricsProperties);
     // Database stats
-    results.put("databases", this.databaseMetrics());
+    addSection("databases", this::databaseMetrics, metricsProperties);
     // Garbage collector
-    results.put("garbageCollector", this.garbageCollectorMetrics());
+    addSection("garbageCollector", this::garbageCollectorMetrics, metricsProperties);
     // Process stats
-    results.put("processMetrics", this.processMetrics());
-
-    return results;
+    addSection("processMetrics", this::processMetrics, metricsProperties);
+    // Eureka server stats
+    addSection("registry", this::registryMetrics, metricsProperties);
   }
 
-  private Map<String, Number> processMetrics() {
-    Map<String, Number> resultsProcess = new HashMap<>();
-
-    Collection<Gauge> gauges = Search.in(this.meterRegistry)
-        .name(s -> s.contains("cpu") || s.contains("system") || s.contains("process")).gauges();
-    gauges.forEach(gauge -> resultsProcess.put(gauge.getId().getName(), gauge.value()));
-
-    Collection<TimeGauge> timeGauges = Search.in(this.meterRegistry)
-        .name(s -> s.contains("process")).timeGauges();
-    timeGauges.forEach(
-        gauge -> resultsProcess.put(gauge.getId().getName(), gauge.value(TimeUnit.MILLISECONDS)));
+  /**
+   * micrometer-spring-legacy GET /management/jha-metrics
+   * <p>
+   * Give metrics displayed on Metrics page. Each section is computed at most once per its
+   * freshness window, concurrent callers share the last computed value.
+   *
+   * @param include comma separated names of the sections to return, all of them when absent
+   * @return a JSON object with a String defining a category of metrics as Key and another object
+   * containing metrics related to this category as Value
+   */
+  @ReadOperation(produces = "application/json")
+  public Resource allMetrics(@Nullable String include) {
+    Collection<String> names = include == null ? sections.keySet() : parseInclude(include);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write('{');
+    boolean first = true;
+    for (String name : names) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.writeBytes(("\"" + name + "\":").getBytes(StandardCharsets.UTF_8));
+      out.writeBytes(sections.get(name).get());
+    }
+    out.write('}');
 
-    return resultsProcess;
+    return new ByteArrayResource(out.toByteArray());
   }
 
-  private Map<String, Object> garbageCollectorMetrics() {
-    Map<String, Object> resultsGarbageCollector = new HashMap<>();
-
-    Collection<Timer> timers = Search.in(this.meterRegistry).name(s -> s.contains("jvm.gc.pause"))
-        .timers();
-    timers.forEach(timer -> {
-      String key = timer.getId().getName();
-
-      HashMap<String, Number> gcPauseResults = new HashMap<>();
-      gcPauseResults.put("count", timer.count());
-      gcPauseResults.put("max", timer.max(TimeUnit.MILLISECONDS));
-      gcPauseResults.put("totalTime", timer.totalTime(TimeUnit.MILLISECONDS));
-      gcPauseResults.put("mean", timer.mean(TimeUnit.MILLISECONDS));
+  /**
+   * GET /management/jhametrics/{section}
+   *
+   * @param section the name of a section
+   * @return the metrics of this section only, <code>null</code> (not found) for an unknown name
+   */
+  @ReadOperation(produces = "application/json")
+  public Resource metricsSection(@Selector String section) {
+    SectionCache<byte[]> sectionCache = sections
+        .get(SECTION_ALIASES.getOrDefault(section, section));
+    return sectionCache == null ? null : new ByteArrayResource(sectionCache.get());
+  }
 
-      ValueAtPercentile[] percentiles = timer.takeSnapshot().percentileValues();
-      for (ValueAtPercentile percentile : percentiles) {
-        gcPauseResults
-            .put(String.valueOf(percentile.percentile()), percentile.value(TimeUnit.MILLISECONDS));
+  private Collection<String> parseInclude(String include) {
+    Set<String> names = new LinkedHashSet<>();
+    for (String name : include.split(",")) {
+      String trimmed = name.trim();
+      if (trimmed.isEmpty()) {
+        continue;
       }
-
-      resultsGarbageCollector.putIfAbsent(key, gcPauseResults);
-    });
-
-    Collection<Gauge> gauges = Search.in(this.meterRegistry)
-        .name(s -> s.contains("jvm.gc") && !s.contains("jvm.gc.pause")).gauges();
-    gauges.forEach(gauge -> resultsGarbageCollector.put(gauge.getId().getName(), gauge.value()));
-
-    Collection<Counter> counters = Search.in(this.meterRegistry)
-        .name(s -> s.contains("jvm.gc") && !s.contains("jvm.gc.pause")).counters();
-    counters.forEach(
-        counter -> resultsGarbageCollector.put(counter.getId().getName(), counter.count()));
-
-    gauges = Search.in(this.meterRegistry).name(s -> s.contains("jvm.classes.loaded")).gauges();
-    Double classesLoaded = gauges.stream().map(Gauge::value).reduce((x, y) -> (x + y))
-        .orElse((double) 0);
-    resultsGarbageCollector.put("classesLoaded", classesLoaded);
-
-    Collection<FunctionCounter> functionCounters = Search.in(this.meterRegistry)
-        .name(s -> s.contains("jvm.classes.unloaded")).functionCounters();
-    Double classesUnloaded = functionCounters.stream().map(FunctionCounter::count)
-        .reduce((x, y) -> (x + y)).orElse((double) 0);
-    resultsGarbageCollector.put("classesUnloaded", classesUnloaded);
-
-    return resultsGarbageCollector;
+      String sectionName = SECTION_ALIASES.getOrDefault(trimmed, trimmed);
+      if (!sections.containsKey(sectionName)) {
+        throw new InvalidEndpointRequestException("Unknown metrics section " + trimmed,
+            "Unknown metrics section, expected one of " + sections.keySet());
+      }
+      names.add(sectionName);
+    }
+    return names;
   }
 
-  private Map<String, Map<String, Number>> databaseMetrics() {
-    Map<String, Map<String, Number>> resultsDatabase = new HashMap<>();
-
-    Collection<Timer> timers = Search.in(this.meterRegistry).name(s -> s.contains("hikari"))
-        .timers();
-    timers.forEach(timer -> {
-      String key = timer.getId().getName().substring(timer.getId().getName().lastIndexOf('.') + 1);
+  private void addSection(String name, SectionWriter writer,
+      RegistryProperties.Metrics metricsProperties) {
+    sections.put(name,
+        new SectionCache<>(() -> render(writer), metricsProperties.freshnessOf(name)));
+  }
 
-      resultsDatabase.putIfAbsent(key, new HashMap<>());
-      resultsDatabase.get(key).put("count", timer.count());
-      resultsDatabase.get(key).put("max", timer.max(TimeUnit.MILLISECONDS));
-      resultsDatabase.get(key).put("totalTime", timer.totalTime(TimeUnit.MILLISECONDS));
-      resultsDatabase.get(key).put("mean", timer.mean(TimeUnit.MILLISECONDS));
+  private byte[] render(SectionWriter writer) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+      generator.writeStartObject();
+      writer.write(generator);
+      generator.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
 
-      ValueAtPercentile[] percentiles = timer.takeSnapshot().percentileValues();
-      for (ValueAtPercentile percentile : percentiles) {
-        resultsDatabase.get(key)
-            .put(String.valueOf(percentile.percentile()), percentile.value(TimeUnit.MILLISECONDS));
+  private void processMetrics(JsonGenerator generator) throws IOException {
+    Map<String, Meter> gauges = new LinkedHashMap<>();
+    for (Meter meter : meterRegistry.getMeters()) {
+      String name = meter.getId().getName();
+      if (meter instanceof Gauge
+          && (name.contains("cpu") || name.contains("system") || name.contains("process"))) {
+        gauges.put(name, meter);
       }
-    });
+    }
 
-    Collection<Gauge> gauges = Search.in(this.meterRegistry).name(s -> s.contains("hikari"))
-        .gauges();
-    gauges.forEach(gauge -> {
-      String key = gauge.getId().getName().substring(gauge.getId().getName().lastIndexOf('.') + 1);
-      resultsDatabase.putIfAbsent(key, new HashMap<>());
-      resultsDatabase.get(key).put("value", gauge.value());
-    });
-
-    return resultsDatabase;
+    for (Map.Entry<String, Meter> gauge : gauges.entrySet()) {
+      if (gauge.getValue() instanceof TimeGauge && gauge.getKey().contains("process")) {
+        generator.writeNumberField(gauge.getKey(),
+            ((TimeGauge) gauge.getValue()).value(TimeUnit.MILLISECONDS));
+      } else {
+        generator.writeNumberField(gauge.getKey(), ((Gauge) gauge.getValue()).value());
+      }
+    }
   }
 
-  private Map<String, Map> serviceMetrics() {
-    Collection<String> crudOperation = Arrays.asList("GET", "POST", "PUT", "DELETE");
-
-    Set<String> uris = new HashSet<>();
-    Collection<Timer> timers = this.meterRegistry.find("http.server.requests").timers();
-
-    timers.forEach(timer -> uris.add(timer.getId().getTag("uri")));
-    Map<String, Map> resultsHttpPerUri = new HashMap<>();
+  private void garbageCollectorMetrics(JsonGenerator generator) throws IOException {
+    Timer gcPause = null;
+    Map<String, Meter> gcMeters = new LinkedHashMap<>();
+    double classesLoaded = 0;
+    double classesUnloaded = 0;
+    for (Meter meter : meterRegistry.getMeters()) {
+      String name = meter.getId().getName();
+      if (name.contains("jvm.gc.pause")) {
+        if (meter instanceof Timer && gcPause == null) {
+          gcPause = (Timer) meter;
+        }
+      } else if (name.contains("jvm.gc")) {
+        if (meter instanceof Gauge || meter instanceof Counter) {
+          gcMeters.put(name, meter);
+        }
+      } else if (name.contains("jvm.classes.loaded") && meter instanceof Gauge) {
+        classesLoaded += ((Gauge) meter).value();
+      } else if (name.contains("jvm.classes.unloaded") && meter instanceof FunctionCounter) {
+        classesUnloaded += ((FunctionCounter) meter).count();
+      }
+    }
+
+    if (gcPause != null) {
+      generator.writeObjectFieldStart(gcPause.getId().getName());
+      writeTimer(generator, gcPause);
+      generator.writeEndObject();
+    }
+    for (Map.Entry<String, Meter> gcMeter : gcMeters.entrySet()) {
+      generator.writeNumberField(gcMeter.getKey(), gcMeter.getValue() instanceof Gauge
+          ? ((Gauge) gcMeter.getValue()).value() : ((Counter) gcMeter.getValue()).count());
+    }
+    generator.writeNumberField("classesLoaded", classesLoaded);
+    generator.writeNumberField("classesUnloaded", classesUnloaded);
+  }
 
-    uris.forEach(uri -> {
-      Map<String, Map> resultsPerUri = new HashMap<>();
+  private void databaseMetrics(JsonGenerator generator) throws IOException {
+    // The meters of every pool sharing a name suffix are merged into one object, the last one
+    // winning for a field: a JSON object cannot repeat a field
+    Map<String, Map<String, Number>> resultsDatabase = new LinkedHashMap<>();
+    for (Meter meter : meterRegistry.getMeters()) {
+      String name = meter.getId().getName();
+      if (name.contains("hikari") && (meter instanceof Timer || meter instanceof Gauge)) {
+        Map<String, Number> fields = resultsDatabase.computeIfAbsent(
+            name.substring(name.lastIndexOf('.') + 1), key -> new LinkedHashMap<>());
+        if (meter instanceof Timer) {
+          fields.putAll(timerFields((Timer) meter));
+        } else {
+          fields.put("value", ((Gauge) meter).value());
+        }
+      }
+    }
 
-      crudOperation.forEach(operation -> {
-        Map<String, Number> resultsPerUriPerCrudOperation = new HashMap<>();
+    for (Map.Entry<String, Map<String, Number>> database : resultsDatabase.entrySet()) {
+      generator.writeObjectFieldStart(database.getKey());
+      writeFields(generator, database.getValue());
+      generator.writeEndObject();
+    }
+  }
 
-        Collection<Timer> httpTimersStream = this.meterRegistry.find("http.server.requests")
-            .tags("uri", uri, "method", operation).timers();
-        long count = httpTimersStream.stream().map(Timer::count).reduce((x, y) -> x + y).orElse(0L);
+  private void serviceMetrics(JsonGenerator generator) throws IOException {
+    MergedHistogram histogram = new MergedHistogram();
+    for (Map.Entry<String, Map<String, Set<Timer>>> uri : httpServerRequests.byUriAndMethod()
+        .entrySet()) {
+      generator.writeObjectFieldStart(uri.getKey());
+      for (String operation : CRUD_OPERATIONS) {
+        Collection<Timer> httpTimers = uri.getValue().get(operation);
+        if (httpTimers == null) {
+          continue;
+        }
+        long count = 0;
+        double max = 0;
+        double totalTime = 0;
+        histogram.reset();
+        for (Timer timer : httpTimers) {
+          HistogramSnapshot snapshot = timer.takeSnapshot();
+          count += snapshot.count();
+          max = Math.max(max, snapshot.max(TimeUnit.MILLISECONDS));
+          totalTime += snapshot.total(TimeUnit.MILLISECONDS);
+          histogram.add(snapshot);
+        }
 
         if (count != 0) {
-          double max = httpTimersStream.stream().map(x -> x.max(TimeUnit.MILLISECONDS))
-              .reduce((x, y) -> x > y ? x : y).orElse((double) 0);
-          double totalTime = httpTimersStream.stream().map(x -> x.totalTime(TimeUnit.MILLISECONDS))
-              .reduce((x, y) -> (x + y)).orElse((double) 0);
-
-          resultsPerUriPerCrudOperation.put("count", count);
-          resultsPerUriPerCrudOperation.put("max", max);
-          resultsPerUriPerCrudOperation.put("mean", totalTime / count);
-
-          resultsPerUri.put(operation, resultsPerUriPerCrudOperation);
+          generator.writeObjectFieldStart(operation);
+          generator.writeNumberField("count", count);
+          generator.writeNumberField("max", max);
+          generator.writeNumberField("mean", totalTime / count);
+          writePercentile(generator, "p50", histogram.percentile(0.5));
+          writePercentile(generator, "p95", histogram.percentile(0.95));
+          writePercentile(generator, "p99", histogram.percentile(0.99));
+          generator.writeEndObject();
         }
-      });
-
-      resultsHttpPerUri.put(uri, resultsPerUri);
-    });
+      }
+      generator.writeEndObject();
+    }
+  }
 
-    return resultsHttpPerUri;
+  private static void writePercentile(JsonGenerator generator, String name, double value)
+      throws IOException {
+    if (!Double.isNaN(value)) {
+      generator.writeNumberField(name, value);
+    }
   }
 
-  private Map<String, Map<String, Number>> cacheMetrics() {
-    Map<String, Map<String, Number>> resultsCache = new HashMap<>();
-
-    Collection<FunctionCounter> counters = Search.in(this.meterRegistry)
-        .name(s -> s.contains("cache") && !s.contains("hibernate")).functionCounters();
-    counters.forEach(counter -> {
-      String key = counter.getId().getName();
-      String name = counter.getId().getTag("name");
-      if (name != null) {
-        resultsCache.putIfAbsent(name, new HashMap<>());
-        if (counter.getId().getTag("result") != null) {
-          key += "." + counter.getId().getTag("result");
-        }
-        resultsCache.get(name).put(key, counter.count());
-      } else {
-        logger.warn(MISSING_NAME_TAG_MESSAGE, key);
+  private void cacheMetrics(JsonGenerator generator) throws IOException {
+    Map<String, Map<String, Meter>> resultsCache = new LinkedHashMap<>();
+    for (Meter meter : meterRegistry.getMeters()) {
+      String key = meter.getId().getName();
+      boolean counter = meter instanceof FunctionCounter && key.contains("cache")
+          && !key.contains("hibernate");
+      if (!counter && !(meter instanceof Gauge && key.contains("cache"))) {
+        continue;
       }
-    });
-
-    Collection<Gauge> gauges = Search.in(this.meterRegistry).name(s -> s.contains("cache"))
-        .gauges();
-    gauges.forEach(gauge -> {
-      String key = gauge.getId().getName();
-      String name = gauge.getId().getTag("name");
-      if (name != null) {
-        resultsCache.putIfAbsent(name, new HashMap<>());
-        resultsCache.get(name).put(key, gauge.value());
-      } else {
+      String name = meter.getId().getTag("name");
+      if (name == null) {
         logger.warn(MISSING_NAME_TAG_MESSAGE, key);
+        continue;
       }
-    });
-    return resultsCache;
+      if (counter && meter.getId().getTag("result") != null) {
+        key += "." + meter.getId().getTag("result");
+      }
+      resultsCache.computeIfAbsent(name, cacheName -> new LinkedHashMap<>()).put(key, meter);
+    }
+
+    for (Map.Entry<String, Map<String, Meter>> cache : resultsCache.entrySet()) {
+      generator.writeObjectFieldStart(cache.getKey());
+      for (Map.Entry<String, Meter> meter : cache.getValue().entrySet()) {
+        generator.writeNumberField(meter.getKey(), meter.getValue() instanceof Gauge
+            ? ((Gauge) meter.getValue()).value()
+            : ((FunctionCounter) meter.getValue()).count());
+      }
+      generator.writeEndObject();
+    }
   }
 
-  private Map<String, Map<String, Number>> jvmMemoryMetrics() {
-    Map<String, Map<String, Number>> resultsJvm = new HashMap<>();
-
-    Search jvmUsedSearch = Search.in(this.meterRegistry).name(s -> s.contains("jvm.memory.used"));
-
-    Collection<Gauge> gauges = jvmUsedSearch.gauges();
-    gauges.forEach(gauge -> {
-      String key = gauge.getId().getTag("id");
-      resultsJvm.putIfAbsent(key, new HashMap<>());
-      resultsJvm.get(key).put("used", gauge.value());
-    });
-
-    Search jvmMaxSearch = Search.in(this.meterRegistry).name(s -> s.contains("jvm.memory.max"));
-
-    gauges = jvmMaxSearch.gauges();
-    gauges.forEach(gauge -> {
-      String key = gauge.getId().getTag("id");
-      resultsJvm.get(key).put("max", gauge.value());
-    });
-
-    gauges = Search.in(this.meterRegistry).name(s -> s.contains("jvm.memory.committed")).gauges();
-    gauges.forEach(gauge -> {
-      String key = gauge.getId().getTag("id");
-      resultsJvm.get(key).put("committed", gauge.value());
-    });
+  private void jvmMemoryMetrics(JsonGenerator generator) throws IOException {
+    Map<String, Gauge[]> resultsJvm = new LinkedHashMap<>();
+    List<String> fields = Arrays.asList("used", "max", "committed");
+    for (Meter meter : meterRegistry.getMeters()) {
+      String name = meter.getId().getName();
+      if (!(meter instanceof Gauge) || !name.contains("jvm.memory.")) {
+        continue;
+      }
+      int field = fields.indexOf(name.substring(name.lastIndexOf('.') + 1));
+      if (field >= 0) {
+        resultsJvm.computeIfAbsent(meter.getId().getTag("id"), id -> new Gauge[fields.size()])
+            [field] = (Gauge) meter;
+      }
+    }
 
-    return resultsJvm;
+    for (Map.Entry<String, Gauge[]> area : resultsJvm.entrySet()) {
+      generator.writeObjectFieldStart(String.valueOf(area.getKey()));
+      for (int i = 0; i < fields.size(); i++) {
+        if (area.getValue()[i] != null) {
+          generator.writeNumberField(fields.get(i), area.getValue()[i].value());
+        }
+      }
+      generator.writeEndObject();
+    }
   }
 
-  private Map<String, Map> httpRequestsMetrics() {
-    Set<String> statusCode = new HashSet<>();
-    Collection<Timer> timers = this.meterRegistry.find("http.server.requests").timers();
-
-    timers.forEach(timer -> statusCode.add(timer.getId().getTag("status")));
+  private void httpRequestsMetrics(JsonGenerator generator) throws IOException {
+    generator.writeObjectFieldStart("percode");
+    for (Map.Entry<String, Set<Timer>> code : httpServerRequests.byStatus().entrySet()) {
+      long count = 0;
+      double max = 0;
+      double totalTime = 0;
+      for (Timer timer : code.getValue()) {
+        count += timer.count();
+        max = Math.max(max, timer.max(TimeUnit.MILLISECONDS));
+        totalTime += timer.totalTime(TimeUnit.MILLISECONDS);
+      }
 
-    Map<String, Map> resultsHttp = new HashMap<>();
-    Map<String, Map<String, Number>> resultsHttpPerCode = new HashMap<>();
+      generator.writeObjectFieldStart(code.getKey());
+      generator.writeNumberField("count", count);
+      generator.writeNumberField("max", max);
+      generator.writeNumberField("mean", count != 0 ? totalTime / count : 0);
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+
+    long countAllrequests = httpServerRequests.all().stream().mapToLong(Timer::count).sum();
+    generator.writeObjectFieldStart("all");
+    generator.writeNumberField("count", countAllrequests);
+    generator.writeEndObject();
+  }
 
-    statusCode.forEach(code -> {
-      Map<String, Number> resultsPerCode = new HashMap<>();
+  private void registryMetrics(JsonGenerator generator) throws IOException {
+    Map<String, Double> instances = new LinkedHashMap<>();
+    Map<String, Double> renews = new LinkedHashMap<>();
+    double registrations = 0;
+    double cancels = 0;
+    double expirations = 0;
+    double responseCacheSize = Double.NaN;
+    Map<String, double[]> responseCache = new LinkedHashMap<>();
+    Map<String, Timer> generations = new LinkedHashMap<>();
+    Map<String, Timer[]> replications = new LinkedHashMap<>();
+    Map<String, DistributionSummary> batchSizes = new LinkedHashMap<>();
+    for (Meter meter : meterRegistry.getMeters()) {
+      String name = meter.getId().getName();
+      if (!name.startsWith("registry.eureka.")) {
+        continue;
+      }
+      String app = meter.getId().getTag("app");
+      String payload = meter.getId().getTag("payload");
+      String peer = meter.getId().getTag("peer");
+      switch (name) {
+        case RegistryMetrics.INSTANCES:
+          instances.put(app, ((Gauge) meter).value());
+          break;
+        case RegistryMetrics.RENEWS:
+          renews.merge(app, count(meter), Double::sum);
+          break;
+        case RegistryMetrics.REGISTRATIONS:
+          registrations += count(meter);
+          break;
+        case RegistryMetrics.CANCELS:
+          cancels += count(meter);
+          break;
+        case RegistryMetrics.EXPIRATIONS:
+          expirations += count(meter);
+          break;
+        case RegistryMetrics.RESPONSE_CACHE_SIZE:
+          responseCacheSize = ((Gauge) meter).value();
+          break;
+        case RegistryMetrics.RESPONSE_CACHE_REQUESTS:
+          responseCache.computeIfAbsent(payload, key -> new double[2])[0] += count(meter);
+          break;
+        case RegistryMetrics.RESPONSE_CACHE_MISSES:
+          responseCache.computeIfAbsent(payload, key -> new double[2])[1] += count(meter);
+          break;
+        case RegistryMetrics.RESPONSE_CACHE_GENERATION:
+          generations.put(payload, (Timer) meter);
+          break;
+        case RegistryMetrics.REPLICATION_BATCHES:
+          replications.computeIfAbsent(peer, key -> new Timer[2])
+              ["failure".equals(meter.getId().getTag("outcome")) ? 1 : 0] = (Timer) meter;
+          break;
+        case RegistryMetrics.REPLICATION_BATCH_SIZE:
+          batchSizes.put(peer, (DistributionSummary) meter);
+          break;
+        default:
+          break;
+      }
+    }
+
+    writeCounts(generator, "instances", instances);
+    writeCounts(generator, "renews", renews);
+    generator.writeNumberField("registrations", registrations);
+    generator.writeNumberField("cancels", cancels);
+    generator.writeNumberField("expirations", expirations);
+
+    generator.writeObjectFieldStart("responseCache");
+    if (!Double.isNaN(responseCacheSize)) {
+      generator.writeNumberField("size", responseCacheSize);
+    }
+    for (Map.Entry<String, double[]> payload : responseCache.entrySet()) {
+      generator.writeObjectFieldStart(payload.getKey());
+      generator.writeNumberField("requests", payload.getValue()[0]);
+      generator.writeNumberField("misses", payload.getValue()[1]);
+      Timer generation = generations.get(payload.getKey());
+      if (generation != null) {
+        generator.writeObjectFieldStart("generation");
+        writeTimer(generator, generation);
+        generator.writeEndObject();
+      }
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+
+    generator.writeObjectFieldStart("replication");
+    for (Map.Entry<String, Timer[]> peer : replications.entrySet()) {
+      long count = 0;
+      double max = 0;
+      double totalTime = 0;
+      for (Timer timer : peer.getValue()) {
+        if (timer != null) {
+          count += timer.count();
+          max = Math.max(max, timer.max(TimeUnit.MILLISECONDS));
+          totalTime += timer.totalTime(TimeUnit.MILLISECONDS);
+        }
+      }
+      Timer failures = peer.getValue()[1];
+      DistributionSummary batchSize = batchSizes.get(peer.getKey());
+
+      generator.writeObjectFieldStart(peer.getKey());
+      generator.writeNumberField("batches", count);
+      generator.writeNumberField("failures", failures == null ? 0 : failures.count());
+      generator.writeNumberField("max", max);
+      generator.writeNumberField("mean", count != 0 ? totalTime / count : 0);
+      if (batchSize != null) {
+        generator.writeNumberField("batchSize", batchSize.mean());
+      }
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+  }
 
-      Collection<Timer> httpTimersStream = this.meterRegistry.find("http.server.requests")
-          .tag("status", code).timers();
-      long count = httpTimersStream.stream().map(Timer::count).reduce((x, y) -> x + y).orElse(0L);
-      double max = httpTimersStream.stream().map(x -> x.max(TimeUnit.MILLISECONDS))
-          .reduce((x, y) -> x > y ? x : y).orElse((double) 0);
-      double totalTime = httpTimersStream.stream().map(x -> x.totalTime(TimeUnit.MILLISECONDS))
-          .reduce((x, y) -> (x + y)).orElse((double) 0);
+  private static double count(Meter meter) {
+    return meter instanceof Counter ? ((Counter) meter).count()
+        : ((FunctionCounter) meter).count();
+  }
 
-      resultsPerCode.put("count", count);
-      resultsPerCode.put("max", max);
-      resultsPerCode.put("mean", count != 0 ? totalTime / count : 0);
+  private static void writeCounts(JsonGenerator generator, String name,
+      Map<String, Double> counts) throws IOException {
+    generator.writeObjectFieldStart(name);
+    for (Map.Entry<String, Double> count : counts.entrySet()) {
+      generator.writeNumberField(String.valueOf(count.getKey()), count.getValue());
+    }
+    generator.writeEndObject();
+  }
 
-      resultsHttpPerCode.put(code, resultsPerCode);
-    });
+  private static void writeTimer(JsonGenerator generator, Timer timer) throws IOException {
+    writeFields(generator, timerFields(timer));
+  }
 
-    resultsHttp.put("percode", resultsHttpPerCode);
+  private static Map<String, Number> timerFields(Timer timer) {
+    Map<String, Number> fields = new LinkedHashMap<>();
+    fields.put("count", timer.count());
+    fields.put("max", timer.max(TimeUnit.MILLISECONDS));
+    fields.put("totalTime", timer.totalTime(TimeUnit.MILLISECONDS));
+    fields.put("mean", timer.mean(TimeUnit.MILLISECONDS));
+
+    ValueAtPercentile[] percentiles = timer.takeSnapshot().percentileValues();
+    for (ValueAtPercentile percentile : percentiles) {
+      fields.put(String.valueOf(percentile.percentile()),
+          percentile.value(TimeUnit.MILLISECONDS));
+    }
+    return fields;
+  }
 
-    timers = this.meterRegistry.find("http.server.requests").timers();
-    long countAllrequests = timers.stream().map(Timer::count).reduce((x, y) -> x + y).orElse(0L);
-    Map<String, Number> resultsHTTPAll = new HashMap<>();
-    resultsHTTPAll.put("count", countAllrequests);
+  private static void writeFields(JsonGenerator generator, Map<String, Number> fields)
+      throws IOException {
+    for (Map.Entry<String, Number> field : fields.entrySet()) {
+      if (field.getValue() instanceof Long) {
+        generator.writeNumberField(field.getKey(), field.getValue().longValue());
+      } else {
+        generator.writeNumberField(field.getKey(), field.getValue().doubleValue());
+      }
+    }
+  }
 
-    resultsHttp.put("all", resultsHTTPAll);
+  /**
+   * Writes the fields of one section into its already started JSON object.
+   */
+  @FunctionalInterface
+  private interface SectionWriter {
 
-    return resultsHttp;
+    void write(JsonGenerator generator) throws IOException;
   }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.endpoint;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.registry.config.RegistryProperties;
+import org.jhapy.registry.endpoint.MetricsTimeSeries.Aggregation;
+import org.jhapy.registry.endpoint.MetricsTimeSeries.Series;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.TaskScheduler;
+
+/**
+ * Recent history of the main jhametrics values, sampled in memory so trends can be drawn without
+ * an external Prometheus.
+ * <p>
+ * Heap, GC pauses, CPU usage and HTTP requests by status class are sampled every
+ * <code>registry.metrics.sampling.interval</code> into a {@link MetricsTimeSeries} sized to fit in
+ * <code>registry.metrics.sampling.max-memory</code>. Counts are stored per interval, not as
+ * totals.
+ */
+@WebEndpoint(id = "jhametricshistory")
+public class JHapyMetricsHistoryEndpoint {
+
+  /**
+   * Maximum number of buckets returned by a query, the step is enlarged to fit.
+   */
+  static final int MAX_POINTS = 2000;
+
+  private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  private static final int HEAP_USED = 0;
+  private static final int HEAP_COMMITTED = 1;
+  private static final int GC_PAUSE_COUNT = 2;
+  private static final int GC_PAUSE_MAX = 3;
+  private static final int GC_PAUSE_P50 = 4;
+  private static final int GC_PAUSE_P95 = 5;
+  private static final int GC_PAUSE_P99 = 6;
+  private static final int PROCESS_CPU = 7;
+  private static final int SYSTEM_CPU = 8;
+  private static final int HTTP = 9;
+
+  private static final List<Series> SERIES = series();
+
+  private final MeterRegistry meterRegistry;
+  private final TaskScheduler taskScheduler;
+  private final RegistryProperties.Sampling sampling;
+  private final MetricsTimeSeries timeSeries;
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  private boolean sampled;
+  private long previousGcCount;
+  private final long[] previousHttpCount = new long[STATUS_CLASSES.length];
+  private final double[] previousHttpTime = new double[STATUS_CLASSES.length];
+  private ScheduledFuture<?> samplingTask;
+
+  public JHapyMetricsHistoryEndpoint(MeterRegistry meterRegistry, TaskScheduler taskScheduler,
+      RegistryProperties.Sampling sampling) {
+    this.meterRegistry = meterRegistry;
+    this.taskScheduler = taskScheduler;
+    this.sampling = sampling;
+    this.timeSeries = new MetricsTimeSeries(SERIES, MetricsTimeSeries
+        .capacityFor(SERIES.size(), sampling.getCapacity(), sampling.getMaxMemory().toBytes()));
+  }
+
+  @PostConstruct
+  public void start() {
+    samplingTask = taskScheduler.scheduleAtFixedRate(this::sample, sampling.getInterval());
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (samplingTask != null) {
+      samplingTask.cancel(false);
+    }
+  }
+
+  /**
+   * GET /management/jhametricshistory?from=&to=&step=&series=
+   *
+   * @param from start of the range, epoch milliseconds, one hour before <code>to</code> when
+   * absent
+   * @param to end of the range, epoch milliseconds, now when absent
+   * @param step bucket size in milliseconds, enlarged to return at most {@value #MAX_POINTS}
+   * buckets
+   * @param series comma separated names of the series to return, all of them when absent
+   * @return the bucket timestamps and the aggregated values of each series
+   */
+  @ReadOperation(produces = "application/json")
+  public Resource history(@Nullable Long from, @Nullable Long to, @Nullable Long step,
+      @Nullable String series) {
+    long rangeEnd = to == null ? System.currentTimeMillis() : to;
+    long rangeStart = from == null ? rangeEnd - TimeUnit.HOURS.toMillis(1) : from;
+    if (rangeStart > rangeEnd) {
+      throw new InvalidEndpointRequestException("from is after to", "from is after to");
+    }
+    long minimumStep = Math.max(sampling.getInterval().toMillis(),
+        (rangeEnd - rangeStart) / MAX_POINTS + 1);
+    long bucketSize = step == null ? minimumStep : Math.max(step, minimumStep);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeNumberField("from", rangeStart);
+      generator.writeNumberField("to", rangeEnd);
+      generator.writeNumberField("step", bucketSize);
+      timeSeries.write(generator, rangeStart, rangeEnd, bucketSize, selectSeries(series));
+      generator.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new ByteArrayResource(out.toByteArray());
+  }
+
+  /**
+   * Take one sample of every series.
+   */
+  synchronized void sample() {
+    double[] values = new double[SERIES.size()];
+    Arrays.fill(values, Double.NaN);
+
+    values[HEAP_USED] = sumHeap("jvm.memory.used");
+    values[HEAP_COMMITTED] = sumHeap("jvm.memory.committed");
+
+    long gcCount = 0;
+    for (Timer timer : meterRegistry.find("jvm.gc.pause").timers()) {
+      HistogramSnapshot snapshot = timer.takeSnapshot();
+      gcCount += snapshot.count();
+      values[GC_PAUSE_MAX] = max(values[GC_PAUSE_MAX], snapshot.max(TimeUnit.MILLISECONDS));
+      for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+        int column = percentile.percentile() == 0.5 ? GC_PAUSE_P50
+            : percentile.percentile() == 0.95 ? GC_PAUSE_P95
+                : percentile.percentile() == 0.99 ? GC_PAUSE_P99 : -1;
+        if (column >= 0) {
+          values[column] = max(values[column], percentile.value(TimeUnit.MILLISECONDS));
+        }
+      }
+    }
+    if (sampled && gcCount >= previousGcCount) {
+      values[GC_PAUSE_COUNT] = gcCount - previousGcCount;
+    }
+    previousGcCount = gcCount;
+
+    values[PROCESS_CPU] = gaugeValue("process.cpu.usage");
+    values[SYSTEM_CPU] = gaugeValue("system.cpu.usage");
+
+    long[] httpCount = new long[STATUS_CLASSES.length];
+    double[] httpTime = new double[STATUS_CLASSES.length];
+    for (Timer timer : meterRegistry.find(HttpServerRequestsIndex.METER_NAME).timers()) {
+      String status = timer.getId().getTag("status");
+      int statusClass = status == null || status.isEmpty() ? -1 : status.charAt(0) - '1';
+      if (statusClass >= 0 && statusClass < STATUS_CLASSES.length) {
+        httpCount[statusClass] += timer.count();
+        httpTime[statusClass] += timer.totalTime(TimeUnit.MILLISECONDS);
+      }
+    }
+    for (int i = 0; i < STATUS_CLASSES.length; i++) {
+      long count = httpCount[i] - previousHttpCount[i];
+      if (sampled && count >= 0) {
+        values[HTTP + 2 * i] = count;
+        values[HTTP + 2 * i + 1] =
+            count == 0 ? Double.NaN : (httpTime[i] - previousHttpTime[i]) / count;
+      }
+    }
+    System.arraycopy(httpCount, 0, previousHttpCount, 0, httpCount.length);
+    System.arraycopy(httpTime, 0, previousHttpTime, 0, httpTime.length);
+    sampled = true;
+
+    timeSeries.append(System.currentTimeMillis(), values);
+  }
+
+  private int[] selectSeries(String names) {
+    if (names == null) {
+      int[] all = new int[SERIES.size()];
+      Arrays.setAll(all, i -> i);
+      return all;
+    }
+    List<Integer> selected = new ArrayList<>();
+    for (String name : names.split(",")) {
+      String trimmed = name.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+      int index = -1;
+      for (int i = 0; i < SERIES.size() && index < 0; i++) {
+        if (SERIES.get(i).getName().equals(trimmed)) {
+          index = i;
+        }
+      }
+      if (index < 0) {
+        throw new InvalidEndpointRequestException("Unknown series " + trimmed,
+            "Unknown series " + trimmed);
+      }
+      selected.add(index);
+    }
+    return selected.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private double sumHeap(String name) {
+    double sum = Double.NaN;
+    for (Gauge gauge : meterRegistry.find(name).tag("area", "heap").gauges()) {
+      sum = Double.isNaN(sum) ? gauge.value() : sum + gauge.value();
+    }
+    return sum;
+  }
+
+  private double gaugeValue(String name) {
+    Gauge gauge = meterRegistry.find(name).gauge();
+    return gauge == null ? Double.NaN : gauge.value();
+  }
+
+  private static double max(double current, double value) {
+    return Double.isNaN(current) ? value : Math.max(current, value);
+  }
+
+  private static List<Series> series() {
+    List<Series> series = new ArrayList<>();
+    series.add(new Series("heap.used", Aggregation.AVG, -1));
+    series.add(new Series("heap.committed", Aggregation.AVG, -1));
+    series.add(new Series("gc.pause.count", Aggregation.SUM, -1));
+    series.add(new Series("gc.pause.max", Aggregation.MAX, -1));
+    series.add(new Series("gc.pause.p50", Aggregation.MAX, -1));
+    series.add(new Series("gc.pause.p95", Aggregation.MAX, -1));
+    series.add(new Series("gc.pause.p99", Aggregation.MAX, -1));
+    series.add(new Series("process.cpu.usage", Aggregation.AVG, -1));
+    series.add(new Series("system.cpu.usage", Aggregation.AVG, -1));
+    for (String statusClass : STATUS_CLASSES) {
+      int count = series.size();
+      series.add(new Series("http." + statusClass + ".count", Aggregation.SUM, -1));
+      series.add(new Series("http." + statusClass + ".mean", Aggregation.AVG, count));
+    }
+    return series;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.endpoint;
+
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sum of the histogram buckets of several timers sharing the same bucket boundaries, used to
+ * compute percentiles across them.
+ * <p>
+ * The bucket counts are expected cumulative, as kept by the registries publishing percentile
+ * histograms (Prometheus); counts that decrease from one bucket to the next are accumulated
+ * first. Snapshots whose boundaries differ from the first added one are ignored. The arrays are
+ * reused after a {@link #reset()}.
+ */
+final class MergedHistogram {
+
+  private double[] bounds = new double[0];
+  private double[] counts = new double[0];
+  private int length;
+
+  void reset() {
+    length = 0;
+  }
+
+  void add(HistogramSnapshot snapshot) {
+    CountAtBucket[] buckets = snapshot.histogramCounts();
+    if (buckets.length == 0) {
+      return;
+    }
+    if (length == 0) {
+      if (bounds.length < buckets.length) {
+        bounds = new double[buckets.length];
+        counts = new double[buckets.length];
+      }
+      length = buckets.length;
+      for (int i = 0; i < length; i++) {
+        bounds[i] = buckets[i].bucket(TimeUnit.MILLISECONDS);
+      }
+      Arrays.fill(counts, 0, length, 0);
+    } else if (buckets.length != length
+        || bounds[length - 1] != buckets[length - 1].bucket(TimeUnit.MILLISECONDS)) {
+      return;
+    }
+
+    boolean cumulative = true;
+    for (int i = 1; i < length && cumulative; i++) {
+      cumulative = buckets[i].count() >= buckets[i - 1].count();
+    }
+    double accumulated = 0;
+    for (int i = 0; i < length; i++) {
+      accumulated = cumulative ? buckets[i].count() : accumulated + buckets[i].count();
+      counts[i] += accumulated;
+    }
+  }
+
+  /**
+   * @param percentile between 0 and 1
+   * @return the value in milliseconds, interpolated in its bucket, NaN without any sample
+   */
+  double percentile(double percentile) {
+    if (length == 0 || counts[length - 1] == 0) {
+      return Double.NaN;
+    }
+    double target = percentile * counts[length - 1];
+    for (int i = 0; i < length; i++) {
+      if (counts[i] >= target) {
+        double lowerBound = i == 0 ? 0 : bounds[i - 1];
+        double lowerCount = i == 0 ? 0 : counts[i - 1];
+        double inBucket = counts[i] - lowerCount;
+        return inBucket == 0 ? bounds[i]
+            : lowerBound + (bounds[i] - lowerBound) * (target - lowerCount) / inBucket;
+      }
+    }
+    return bounds[length - 1];
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.endpoint;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fixed size ring buffer of metric samples, stored as one primitive column per series.
+ * <p>
+ * Once full, each new sample overwrites the oldest one, so the memory used is set when the store
+ * is created. Range queries aggregate the samples into buckets of the requested step, each series
+ * with its own {@link Aggregation}.
+ */
+final class MetricsTimeSeries {
+
+  /**
+   * How the samples of a series falling in the same bucket are combined.
+   */
+  enum Aggregation {
+    AVG, SUM, MAX
+  }
+
+  /**
+   * A column of the store.
+   */
+  static final class Series {
+
+    private final String name;
+    private final Aggregation aggregation;
+    private final int weight;
+
+    /**
+     * @param weight the index of the series weighting the average, -1 for a plain average
+     */
+    Series(String name, Aggregation aggregation, int weight) {
+      this.name = name;
+      this.aggregation = aggregation;
+      this.weight = weight;
+    }
+
+    String getName() {
+      return name;
+    }
+  }
+
+  private final List<Series> series;
+  private final long[] timestamps;
+  private final double[][] columns;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int next;
+  private int size;
+
+  MetricsTimeSeries(List<Series> series, int capacity) {
+    this.series = series;
+    this.timestamps = new long[capacity];
+    this.columns = new double[series.size()][capacity];
+  }
+
+  /**
+   * @return the number of samples fitting in the given memory, at most <code>requested</code>
+   */
+  static int capacityFor(int seriesCount, int requested, long maxBytes) {
+    long bytesPerSample = Long.BYTES + (long) Double.BYTES * seriesCount;
+    return (int) Math.max(1, Math.min(requested, maxBytes / bytesPerSample));
+  }
+
+  int capacity() {
+    return timestamps.length;
+  }
+
+  /**
+   * @param values one value per series, in the order of the series, NaN when unknown
+   */
+  void append(long timestamp, double[] values) {
+    lock.writeLock().lock();
+    try {
+      timestamps[next] = timestamp;
+      for (int i = 0; i < columns.length; i++) {
+        columns[i][next] = values[i];
+      }
+      next = (next + 1) % timestamps.length;
+      size = Math.min(size + 1, timestamps.length);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Write the samples between <code>from</code> and <code>to</code> (inclusive), aggregated by
+   * <code>step</code>, as <code>timestamps</code> and <code>series</code> fields. Empty buckets are
+   * left out, values unknown in a bucket are written as <code>null</code>.
+   *
+   * @param selected the indexes of the series to write
+   */
+  void write(JsonGenerator generator, long from, long to, long step, int[] selected)
+      throws IOException {
+    int buckets = (int) ((to - from) / step + 1);
+    long[] bucketSamples = new long[buckets];
+    double[][] values = new double[selected.length][buckets];
+    double[][] weights = new double[selected.length][buckets];
+    for (int s = 0; s < selected.length; s++) {
+      Arrays.fill(values[s], Double.NaN);
+    }
+
+    lock.readLock().lock();
+    try {
+      int capacity = timestamps.length;
+      for (int i = 0, index = (next - size + capacity) % capacity; i < size;
+          i++, index = (index + 1) % capacity) {
+        long timestamp = timestamps[index];
+        if (timestamp < from || timestamp > to) {
+          continue;
+        }
+        int bucket = (int) ((timestamp - from) / step);
+        bucketSamples[bucket]++;
+        for (int s = 0; s < selected.length; s++) {
+          accumulate(selected[s], index, values[s], weights[s], bucket);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    generator.writeArrayFieldStart("timestamps");
+    for (int bucket = 0; bucket < buckets; bucket++) {
+      if (bucketSamples[bucket] != 0) {
+        generator.writeNumber(from + bucket * step);
+      }
+    }
+    generator.writeEndArray();
+
+    generator.writeObjectFieldStart("series");
+    for (int s = 0; s < selected.length; s++) {
+      Series current = series.get(selected[s]);
+      generator.writeArrayFieldStart(current.name);
+      for (int bucket = 0; bucket < buckets; bucket++) {
+        if (bucketSamples[bucket] == 0) {
+          continue;
+        }
+        double value = values[s][bucket];
+        if (current.aggregation == Aggregation.AVG && !Double.isNaN(value)) {
+          value /= weights[s][bucket];
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+          generator.writeNull();
+        } else {
+          generator.writeNumber(value);
+        }
+      }
+      generator.writeEndArray();
+    }
+    generator.writeEndObject();
+  }
+
+  private void accumulate(int column, int index, double[] values, double[] weights,
+      int bucket) {
+    Series current = series.get(column);
+    double value = columns[column][index];
+    if (Double.isNaN(value)) {
+      return;
+    }
+    double weight = current.weight < 0 ? 1 : columns[current.weight][index];
+    if (current.aggregation == Aggregation.AVG && (Double.isNaN(weight) || weight <= 0)) {
+      return;
+    }
+    double previous = values[bucket];
+    switch (current.aggregation) {
+      case SUM:
+        values[bucket] = Double.isNaN(previous) ? value : previous + value;
+        break;
+      case MAX:
+        values[bucket] = Double.isNaN(previous) ? value : Math.max(previous, value);
+        break;
+      default:
+        values[bucket] = (Double.isNaN(previous) ? 0 : previous) + value * weight;
+        weights[bucket] += weight;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.endpoint;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Last computed value of a metrics section, reused while it is fresher than the configured
+ * window.
+ * <p>
+ * Only one caller computes an expired section at a time. The others get the previous value
+ * meanwhile, or wait for the running computation when there is no previous value yet.
+ */
+final class SectionCache<T> {
+
+  private final Supplier<T> computation;
+  private final long freshness;
+  private final AtomicReference<CompletableFuture<T>> running = new AtomicReference<>();
+  private volatile Snapshot<T> snapshot;
+
+  SectionCache(Supplier<T> computation, Duration freshness) {
+    this.computation = computation;
+    this.freshness = freshness.toNanos();
+  }
+
+  T get() {
+    while (true) {
+      Snapshot<T> current = snapshot;
+      if (isFresh(current)) {
+        return current.value;
+      }
+      CompletableFuture<T> computing = running.get();
+      if (computing == null) {
+        CompletableFuture<T> created = new CompletableFuture<>();
+        if (running.compareAndSet(null, created)) {
+          return compute(created);
+        }
+        continue;
+      }
+      if (current != null) {
+        return current.value;
+      }
+      try {
+        return computing.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  private T compute(CompletableFuture<T> created) {
+    try {
+      // Another caller may have refreshed the section right before this one took over
+      Snapshot<T> current = snapshot;
+      T value;
+      if (isFresh(current)) {
+        value = current.value;
+      } else {
+        value = computation.get();
+        snapshot = new Snapshot<>(value, System.nanoTime());
+      }
+      created.complete(value);
+      return value;
+    } catch (RuntimeException e) {
+      created.completeExceptionally(e);
+      throw e;
+    } finally {
+      running.set(null);
+    }
+  }
+
+  private boolean isFresh(Snapshot<T> current) {
+    return current != null && System.nanoTime() - current.computedAt < freshness;
+  }
+
+  private static final class Snapshot<T> {
+
+    private final T value;
+    private final long computedAt;
+
+    private Snapshot(T value, long computedAt) {
+      this.value = value;
+      this.computedAt = computedAt;
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import com.netflix.discovery.shared.transport.EurekaHttpResponse;
+import com.netflix.eureka.cluster.HttpReplicationClient;
+import com.netflix.eureka.cluster.protocol.ReplicationList;
+import com.netflix.eureka.cluster.protocol.ReplicationListResponse;
+import com.netflix.eureka.resources.ASGResource.ASGStatus;
+import com.netflix.eureka.cluster.PeerEurekaNode;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.jhapy.commons.utils.HasLogger;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Replication client recording, per peer, the size, latency and outcome of the batches sent by
+ * the Eureka peer replication. Its meters are removed when the peer is shut down.
+ * <p>
+ * Once bound to its {@link PeerEurekaNode}, it also exposes the backpressure of the batching
+ * queue of the node, read from the private Eureka acceptor: the pending tasks, and the tasks
+ * accepted, coalesced with a newer one for the same instance, dropped on overflow, expired, or
+ * replayed after a failure.
+ */
+class InstrumentedReplicationClient implements HttpReplicationClient, HasLogger {
+
+  private static final String[][] QUEUE_RESULTS = {{"accepted", "acceptedTasks"},
+      {"coalesced", "overriddenTasks"}, {"dropped", "queueOverflows"},
+      {"expired", "expiredTasks"}, {"replayed", "replayedTasks"}};
+
+  private final HttpReplicationClient delegate;
+  private final MeterRegistry meterRegistry;
+  private final Timer successes;
+  private final Timer failures;
+  private final DistributionSummary batchSize;
+  private final String peer;
+  private final List<Meter> queueMeters = new CopyOnWriteArrayList<>();
+  private volatile Gauge queueSize;
+  private volatile long lastSuccess;
+
+  InstrumentedReplicationClient(HttpReplicationClient delegate, String peer,
+      MeterRegistry meterRegistry) {
+    this.delegate = delegate;
+    this.meterRegistry = meterRegistry;
+    this.peer = peer;
+    this.successes = batchTimer(peer, "success");
+    this.failures = batchTimer(peer, "failure");
+    this.batchSize = DistributionSummary.builder(RegistryMetrics.REPLICATION_BATCH_SIZE)
+        .tag("peer", peer).description("Replication tasks per batch sent to the peer")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Register the queue meters of the node sending its batches through this client.
+   */
+  void bindQueue(PeerEurekaNode node) {
+    Object acceptor = acceptorExecutor(node);
+    Method sizeMethod = acceptor == null ? null
+        : ReflectionUtils.findMethod(acceptor.getClass(), "getQueueSize");
+    if (sizeMethod == null) {
+      logger().warn(getLoggerPrefix("bindQueue") + "Replication queue of {} not instrumented",
+          peer);
+      return;
+    }
+    ReflectionUtils.makeAccessible(sizeMethod);
+    queueSize = Gauge.builder(RegistryMetrics.REPLICATION_QUEUE, acceptor,
+        a -> ((Number) ReflectionUtils.invokeMethod(sizeMethod, a)).doubleValue())
+        .tag("peer", peer).description("Replication tasks waiting to be sent to the peer")
+        .register(meterRegistry);
+    queueMeters.add(queueSize);
+    for (String[] result : QUEUE_RESULTS) {
+      Field field = ReflectionUtils.findField(acceptor.getClass(), result[1]);
+      if (field == null) {
+        continue;
+      }
+      ReflectionUtils.makeAccessible(field);
+      queueMeters.add(FunctionCounter.builder(RegistryMetrics.REPLICATION_TASKS, acceptor,
+          a -> ((Number) ReflectionUtils.getField(field, a)).doubleValue()).tag("peer", peer)
+          .tag("result", result[0]).description("Replication tasks queued for the peer")
+          .register(meterRegistry));
+    }
+  }
+
+  /**
+   * @return the replication tasks waiting to be sent, <code>-1</code> if the queue is not bound
+   */
+  long getQueueSize() {
+    Gauge gauge = queueSize;
+    return gauge == null ? -1 : (long) gauge.value();
+  }
+
+  /**
+   * @return the epoch millis of the last batch accepted by the peer, <code>0</code> if none
+   */
+  long getLastSuccess() {
+    return lastSuccess;
+  }
+
+  /**
+   * @return the number of batches the peer failed to accept
+   */
+  long getFailureCount() {
+    return failures.count();
+  }
+
+  /**
+   * @return the acceptor of the batching dispatcher of the node, <code>null</code> if the Eureka
+   * internals changed
+   */
+  private static Object acceptorExecutor(PeerEurekaNode node) {
+    Field dispatcherField = ReflectionUtils.findField(PeerEurekaNode.class, "batchingDispatcher");
+    if (dispatcherField == null) {
+      return null;
+    }
+    ReflectionUtils.makeAccessible(dispatcherField);
+    Object dispatcher = ReflectionUtils.getField(dispatcherField, node);
+    Field acceptorField = dispatcher == null ? null
+        : ReflectionUtils.findField(dispatcher.getClass(), "val$acceptorExecutor");
+    if (acceptorField == null) {
+      return null;
+    }
+    ReflectionUtils.makeAccessible(acceptorField);
+    return ReflectionUtils.getField(acceptorField, dispatcher);
+  }
+
+  private Timer batchTimer(String peer, String outcome) {
+    return Timer.builder(RegistryMetrics.REPLICATION_BATCHES).tag("peer", peer)
+        .tag("outcome", outcome).description("Replication batches sent to the peer")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public EurekaHttpResponse<ReplicationListResponse> submitBatchUpdates(
+      ReplicationList replicationList) {
+    batchSize.record(replicationList.getReplicationList().size());
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      EurekaHttpResponse<ReplicationListResponse> response = delegate
+          .submitBatchUpdates(replicationList);
+      success = response.getStatusCode() >= 200 && response.getStatusCode() < 300;
+      return response;
+    } finally {
+      if (success) {
+        lastSuccess = System.currentTimeMillis();
+      }
+      (success ? successes : failures).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public EurekaHttpResponse<Void> statusUpdate(String asgName, ASGStatus newStatus) {
+    return delegate.statusUpdate(asgName, newStatus);
+  }
+
+  @Override
+  public EurekaHttpResponse<Void> register(InstanceInfo info) {
+    return delegate.register(info);
+  }
+
+  @Override
+  public EurekaHttpResponse<Void> cancel(String appName, String id) {
+    return delegate.cancel(appName, id);
+  }
+
+  @Override
+  public EurekaHttpResponse<InstanceInfo> sendHeartBeat(String appName, String id,
+      InstanceInfo info, InstanceStatus overriddenStatus) {
+    return delegate.sendHeartBeat(appName, id, info, overriddenStatus);
+  }
+
+  @Override
+  public EurekaHttpResponse<Void> statusUpdate(String appName, String id,
+      InstanceStatus newStatus, InstanceInfo info) {
+    return delegate.statusUpdate(appName, id, newStatus, info);
+  }
+
+  @Override
+  public EurekaHttpResponse<Void> deleteStatusOverride(String appName, String id,
+      InstanceInfo info) {
+    return delegate.deleteStatusOverride(appName, id, info);
+  }
+
+  @Override
+  public EurekaHttpResponse<Applications> getApplications(String... regions) {
+    return delegate.getApplications(regions);
+  }
+
+  @Override
+  public EurekaHttpResponse<Applications> getDelta(String... regions) {
+    return delegate.getDelta(regions);
+  }
+
+  @Override
+  public EurekaHttpResponse<Applications> getVip(String vipAddress, String... regions) {
+    return delegate.getVip(vipAddress, regions);
+  }
+
+  @Override
+  public EurekaHttpResponse<Applications> getSecureVip(String secureVipAddress,
+      String... regions) {
+    return delegate.getSecureVip(secureVipAddress, regions);
+  }
+
+  @Override
+  public EurekaHttpResponse<Application> getApplication(String appName) {
+    return delegate.getApplication(appName);
+  }
+
+  @Override
+  public EurekaHttpResponse<InstanceInfo> getInstance(String appName, String id) {
+    return delegate.getInstance(appName, id);
+  }
+
+  @Override
+  public EurekaHttpResponse<InstanceInfo> getInstance(String id) {
+    return delegate.getInstance(id);
+  }
+
+  @Override
+  public void shutdown() {
+    meterRegistry.remove(successes);
+    meterRegistry.remove(failures);
+    meterRegistry.remove(batchSize);
+    queueMeters.forEach(meterRegistry::remove);
+    delegate.shutdown();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instances added, changed and removed between two registry snapshot versions.
+ * <p>
+ * When the requested base version is no longer known, <code>reset</code> is set and every
+ * current instance is reported as added: the caller must drop its local state.
+ */
+public class RegistryDelta {
+
+  private final long fromVersion;
+  private final long toVersion;
+  private final boolean reset;
+  private final List<RegistryInstance> added;
+  private final List<RegistryInstance> changed;
+  private final List<String> removed;
+
+  private RegistryDelta(long fromVersion, long toVersion, boolean reset,
+      List<RegistryInstance> added, List<RegistryInstance> changed, List<String> removed) {
+    this.fromVersion = fromVersion;
+    this.toVersion = toVersion;
+    this.reset = reset;
+    this.added = added;
+    this.changed = changed;
+    this.removed = removed;
+  }
+
+  static RegistryDelta between(long fromVersion, Map<String, RegistryInstance> from,
+      RegistrySnapshot to) {
+    List<RegistryInstance> added = new ArrayList<>();
+    List<RegistryInstance> changed = new ArrayList<>();
+    List<String> removed = new ArrayList<>();
+    for (RegistryInstance instance : to.getInstances()) {
+      RegistryInstance previous = from.get(instance.getKey());
+      if (previous == null) {
+        added.add(instance);
+      } else if (previous != instance && !previous.equals(instance)) {
+        changed.add(instance);
+      }
+    }
+    Map<String, RegistryInstance> current = to.getInstancesByKey();
+    for (String key : from.keySet()) {
+      if (!current.containsKey(key)) {
+        removed.add(key);
+      }
+    }
+    return new RegistryDelta(fromVersion, to.getVersion(), false, added, changed, removed);
+  }
+
+  static RegistryDelta reset(long fromVersion, RegistrySnapshot to) {
+    return new RegistryDelta(fromVersion, to.getVersion(), true, to.getInstances(),
+        Collections.emptyList(), Collections.emptyList());
+  }
+
+  public long getFromVersion() {
+    return fromVersion;
+  }
+
+  public long getToVersion() {
+    return toVersion;
+  }
+
+  public boolean isReset() {
+    return reset;
+  }
+
+  public List<RegistryInstance> getAdded() {
+    return added;
+  }
+
+  public List<RegistryInstance> getChanged() {
+    return changed;
+  }
+
+  /**
+   * @return the keys (<code>APP/id</code>) of the removed instances
+   */
+  public List<String> getRemoved() {
+    return removed;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+/**
+ * Registry change pushed to the event stream subscribers, and published as an application event
+ * for the other consumers (history log, metrics).
+ */
+public class RegistryEvent {
+
+  /**
+   * Persisted by its ordinal in the {@link RegistryEventLog}: new types are added last.
+   */
+  public enum Type {
+    REGISTERED, CANCELED, RENEW_MISS, STATUS_CHANGED, EXPIRED
+  }
+
+  private final Type type;
+  private final String appName;
+  private final String instanceId;
+  private final String status;
+  private final boolean replication;
+  private final long timestamp;
+
+  public RegistryEvent(Type type, String appName, String instanceId, String status,
+      boolean replication) {
+    this(type, appName, instanceId, status, replication, System.currentTimeMillis());
+  }
+
+  public RegistryEvent(Type type, String appName, String instanceId, String status,
+      boolean replication, long timestamp) {
+    this.type = type;
+    this.appName = appName;
+    this.instanceId = instanceId;
+    this.status = status;
+    this.replication = replication;
+    this.timestamp = timestamp;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getAppName() {
+    return appName;
+  }
+
+  public String getInstanceId() {
+    return instanceId;
+  }
+
+  /**
+   * @return the instance status when known, <code>null</code> otherwise
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @return <code>true</code> when the change was replicated from a peer registry
+   */
+  public boolean isReplication() {
+    return replication;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.InstanceInfo;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.jhapy.registry.eureka.RegistryEvent.Type;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceCanceledEvent;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRegisteredEvent;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRenewedEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Turns the Eureka server events into {@link RegistryEvent}s, published as application events
+ * and fanned out to Server-Sent Events subscribers.
+ * <p>
+ * Each subscriber has a bounded buffer drained by a small dispatcher pool: a slow consumer only
+ * delays itself, and once its buffer is full the oldest events are dropped. The number of
+ * dropped events is sent as an <code>overflow</code> event so the client knows it has to resync
+ * from <code>/api/eureka/applications</code>.
+ */
+@Component
+public class RegistryEventBroadcaster implements HasLogger {
+
+  /**
+   * Eureka publishes the cancel event twice when a client cancels its lease (once from
+   * <code>cancel</code> and once from <code>internalCancel</code>), on the same thread.
+   */
+  private static final long DUPLICATE_CANCEL_WINDOW_MS = 1000;
+
+  private final RegistryProperties.Events properties;
+  private final ApplicationEventPublisher eventPublisher;
+  private final ExecutorService dispatcher;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final ThreadLocal<LastCancel> lastCancel = new ThreadLocal<>();
+
+  public RegistryEventBroadcaster(RegistryProperties registryProperties,
+      ApplicationEventPublisher eventPublisher) {
+    this.properties = registryProperties.getEvents();
+    this.eventPublisher = eventPublisher;
+    this.dispatcher = Executors.newFixedThreadPool(properties.getDispatcherThreads(),
+        new CustomizableThreadFactory("registry-events-"));
+  }
+
+  @PreDestroy
+  public void stop() {
+    subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    subscribers.clear();
+    dispatcher.shutdownNow();
+  }
+
+  /**
+   * Register a new event stream subscriber.
+   *
+   * @throws ResponseStatusException when the maximum number of subscribers is reached
+   */
+  public SseEmitter subscribe() {
+    if (subscribers.size() >= properties.getMaxSubscribers()) {
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+          "Too many registry event subscribers");
+    }
+    SseEmitter emitter = new SseEmitter(properties.getStreamTimeout().toMillis());
+    Subscriber subscriber = new Subscriber(emitter, properties.getBufferSize());
+    subscribers.add(subscriber);
+    emitter.onCompletion(() -> subscribers.remove(subscriber));
+    emitter.onError(e -> subscribers.remove(subscriber));
+    return emitter;
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  @EventListener
+  public void onInstanceRegistered(EurekaInstanceRegisteredEvent event) {
+    InstanceInfo info = event.getInstanceInfo();
+    publish(new RegistryEvent(Type.REGISTERED, info.getAppName(), info.getId(),
+        info.getStatus().name(), event.isReplication()));
+  }
+
+  @EventListener
+  public void onInstanceCanceled(EurekaInstanceCanceledEvent event) {
+    if (event instanceof LeaseExpiredEvent) {
+      logger().info(getLoggerPrefix("onInstanceCanceled") + "Lease expired: {}/{}",
+          event.getAppName(), event.getServerId());
+      publish(new RegistryEvent(Type.EXPIRED, event.getAppName(), event.getServerId(), null,
+          false));
+      return;
+    }
+    String key = event.getAppName() + "/" + event.getServerId();
+    long now = System.currentTimeMillis();
+    LastCancel last = lastCancel.get();
+    if (last != null && last.key.equals(key) && now - last.at < DUPLICATE_CANCEL_WINDOW_MS) {
+      lastCancel.remove();
+      return;
+    }
+    lastCancel.set(new LastCancel(key, now));
+    publish(new RegistryEvent(Type.CANCELED, event.getAppName(), event.getServerId(), null,
+        event.isReplication()));
+  }
+
+  @EventListener
+  public void onInstanceRenewed(EurekaInstanceRenewedEvent event) {
+    if (event.getInstanceInfo() == null) {
+      publish(new RegistryEvent(Type.RENEW_MISS, event.getAppName(), event.getServerId(), null,
+          event.isReplication()));
+    }
+  }
+
+  @EventListener
+  public void onSnapshotChanged(RegistrySnapshotChangedEvent event) {
+    RegistrySnapshot previous = event.getPrevious();
+    if (previous == null) {
+      return;
+    }
+    for (RegistryInstance instance : event.getCurrent().getInstances()) {
+      RegistryInstance known = previous.getInstance(instance.getAppName(), instance.getId());
+      if (known != null && !known.getStatus().equals(instance.getStatus())) {
+        publish(new RegistryEvent(Type.STATUS_CHANGED, instance.getAppName(), instance.getId(),
+            instance.getStatus(), false));
+      }
+    }
+  }
+
+  private void publish(RegistryEvent event) {
+    eventPublisher.publishEvent(event);
+    for (Subscriber subscriber : subscribers) {
+      subscriber.offer(event);
+    }
+  }
+
+  private static class LastCancel {
+
+    private final String key;
+    private final long at;
+
+    private LastCancel(String key, long at) {
+      this.key = key;
+      this.at = at;
+    }
+  }
+
+  private class Subscriber {
+
+    private final SseEmitter emitter;
+    private final BlockingQueue<RegistryEvent> buffer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Subscriber(SseEmitter emitter, int bufferSize) {
+      this.emitter = emitter;
+      this.buffer = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    private void offer(RegistryEvent event) {
+      while (!buffer.offer(event)) {
+        if (buffer.poll() != null) {
+          dropped.incrementAndGet();
+        }
+      }
+      if (draining.compareAndSet(false, true)) {
+        try {
+          dispatcher.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+          draining.set(false);
+        }
+      }
+    }
+
+    private void drain() {
+      try {
+        do {
+          RegistryEvent event;
+          while ((event = buffer.poll()) != null) {
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+              emitter.send(SseEmitter.event().name("overflow").data(lost));
+            }
+            emitter.send(SseEmitter.event().name(event.getType().name())
+                .data(event, MediaType.APPLICATION_JSON));
+          }
+          draining.set(false);
+        } while (!buffer.isEmpty() && draining.compareAndSet(false, true));
+      } catch (IOException | IllegalStateException e) {
+        logger().debug(getLoggerPrefix("drain") + "Dropping registry event subscriber: {}",
+            e.getMessage());
+        subscribers.remove(this);
+        buffer.clear();
+        emitter.completeWithError(e);
+      }
+    }
+  }
+}
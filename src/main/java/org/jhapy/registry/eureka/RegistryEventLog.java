@@ -0,0 +1,369 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.jhapy.registry.eureka.RegistryEvent.Type;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only, on-disk history of the {@link RegistryEvent}s, for forensics beyond the small
+ * in-memory <code>lastN</code> queues of Eureka.
+ * <p>
+ * Events are queued without blocking the registry threads and written in batches by a single
+ * writer thread into fixed-size memory-mapped segments. A new segment is started when the
+ * current one is full, and the oldest segments are deleted once the configured disk size is
+ * reached. Segment files are named after the timestamp of their first event so a time range
+ * query only reads the segments it overlaps.
+ * <p>
+ * Record layout: <code>int length, long timestamp, byte type, byte replication, then the
+ * application name, instance id and status as short-length-prefixed UTF-8</code>. A zero length
+ * marks the end of a segment.
+ */
+@Component
+public class RegistryEventLog implements HasLogger {
+
+  private static final int SEGMENT_MAGIC = 0x4A484556;
+  private static final String SEGMENT_PREFIX = "events-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int MAX_RECORD_SIZE = 4096;
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final Type[] TYPES = Type.values();
+
+  private final RegistryProperties.History properties;
+  private final BlockingQueue<RegistryEvent> queue;
+  private final AtomicLong dropped = new AtomicLong();
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  private final ByteBuffer scratch = ByteBuffer.allocate(MAX_RECORD_SIZE);
+
+  private Thread writer;
+  private volatile boolean running;
+  private Segment active;
+  private FileChannel activeChannel;
+  private MappedByteBuffer activeBuffer;
+  private int segmentSequence;
+
+  public RegistryEventLog(RegistryProperties registryProperties) {
+    this.properties = registryProperties.getHistory();
+    this.queue = new ArrayBlockingQueue<>(properties.getQueueCapacity());
+  }
+
+  @PostConstruct
+  public void start() throws IOException {
+    if (!properties.isEnabled()) {
+      return;
+    }
+    Path directory = Paths.get(properties.getDirectory());
+    Files.createDirectories(directory);
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path path : files.filter(RegistryEventLog::isSegment).sorted()
+          .collect(Collectors.toList())) {
+        segments.add(new Segment(path, firstTimestamp(path), -1));
+      }
+    }
+    segmentSequence = segments.size();
+    running = true;
+    writer = new Thread(this::write, "registry-history-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    running = false;
+    if (writer != null) {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+  }
+
+  @EventListener
+  public void onRegistryEvent(RegistryEvent event) {
+    if (running && !queue.offer(event)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of events dropped because the writer could not keep up
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Read the events of a time range, oldest first.
+   *
+   * @param from lower bound (inclusive) of the event timestamps, epoch milliseconds
+   * @param to upper bound (inclusive) of the event timestamps, epoch milliseconds
+   * @param appName application name to filter on, <code>null</code> for all applications
+   * @param limit maximum number of events returned
+   */
+  public List<RegistryEvent> query(long from, long to, String appName, int limit) {
+    String loggerPrefix = getLoggerPrefix("query");
+    List<RegistryEvent> result = new ArrayList<>();
+    List<Segment> candidates = new ArrayList<>(segments);
+    for (int i = 0; i < candidates.size() && result.size() < limit; i++) {
+      Segment segment = candidates.get(i);
+      long end =
+          i + 1 < candidates.size() ? candidates.get(i + 1).firstTimestamp : Long.MAX_VALUE;
+      if (end < from || segment.firstTimestamp > to) {
+        continue;
+      }
+      try {
+        read(segment, from, to, appName, limit, result);
+      } catch (IOException e) {
+        // The segment was deleted by the retention in between
+        logger().debug(loggerPrefix + "Skipping segment {}: {}", segment.path, e.getMessage());
+      }
+    }
+    return result;
+  }
+
+  private void read(Segment segment, long from, long to, String appName, int limit,
+      List<RegistryEvent> result) throws IOException {
+    try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+      // Only the published part of the segment, a few records at a time
+      long size = segment.limit >= 0 ? segment.limit : channel.size();
+      ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      buffer.flip();
+      if (!fill(channel, buffer, size, Integer.BYTES) || buffer.getInt() != SEGMENT_MAGIC) {
+        return;
+      }
+      while (result.size() < limit && fill(channel, buffer, size, Integer.BYTES)) {
+        int length = buffer.getInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE || !fill(channel, buffer, size, length)) {
+          return;
+        }
+        // Decoded within its length: a torn or corrupt record cannot read past it
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+        try {
+          long timestamp = record.getLong();
+          int ordinal = record.get();
+          if (ordinal < 0 || ordinal >= TYPES.length) {
+            throw new BufferUnderflowException();
+          }
+          boolean replication = record.get() != 0;
+          String eventAppName = getString(record);
+          if (timestamp >= from && timestamp <= to && (appName == null || appName
+              .equalsIgnoreCase(eventAppName))) {
+            result.add(new RegistryEvent(TYPES[ordinal], eventAppName, getString(record),
+                getString(record), replication, timestamp));
+          }
+        } catch (BufferUnderflowException e) {
+          logger().warn(getLoggerPrefix("read") + "Malformed record in {}, the rest of the "
+              + "segment is skipped", segment.path);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the segment, up to <code>size</code>, until the buffer holds <code>required</code>
+   * bytes.
+   *
+   * @return <code>false</code> when the segment ends before
+   */
+  private static boolean fill(FileChannel channel, ByteBuffer buffer, long size, int required)
+      throws IOException {
+    if (buffer.remaining() >= required) {
+      return true;
+    }
+    buffer.compact();
+    while (buffer.position() < required) {
+      int max = (int) Math.min(buffer.remaining(), size - channel.position());
+      if (max <= 0) {
+        break;
+      }
+      buffer.limit(buffer.position() + max);
+      int read = channel.read(buffer);
+      buffer.limit(buffer.capacity());
+      if (read < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    return buffer.remaining() >= required;
+  }
+
+  private void write() {
+    String loggerPrefix = getLoggerPrefix("write");
+    List<RegistryEvent> batch = new ArrayList<>(properties.getBatchSize());
+    while (running || !queue.isEmpty()) {
+      try {
+        RegistryEvent first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, properties.getBatchSize() - 1);
+        for (RegistryEvent event : batch) {
+          append(event);
+        }
+        active.limit = activeBuffer.position();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (IOException | RuntimeException e) {
+        logger().error(loggerPrefix + "Unable to write registry history, " + batch.size()
+            + " events lost", e);
+      } finally {
+        batch.clear();
+      }
+    }
+    closeActive();
+  }
+
+  private void append(RegistryEvent event) throws IOException {
+    scratch.clear();
+    scratch.putInt(0);
+    scratch.putLong(event.getTimestamp());
+    scratch.put((byte) event.getType().ordinal());
+    scratch.put((byte) (event.isReplication() ? 1 : 0));
+    putString(scratch, event.getAppName());
+    putString(scratch, event.getInstanceId());
+    putString(scratch, event.getStatus());
+    scratch.putInt(0, scratch.position() - Integer.BYTES);
+    scratch.flip();
+
+    // Keep room for the zero length marking the end of the segment
+    if (activeBuffer == null
+        || activeBuffer.remaining() < scratch.remaining() + Integer.BYTES) {
+      roll(event.getTimestamp());
+    }
+    activeBuffer.put(scratch);
+  }
+
+  private void roll(long timestamp) throws IOException {
+    closeActive();
+    Path path = Paths.get(properties.getDirectory(),
+        String.format("%s%020d-%06d%s", SEGMENT_PREFIX, timestamp, segmentSequence++,
+            SEGMENT_SUFFIX));
+    activeChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    activeBuffer = activeChannel
+        .map(MapMode.READ_WRITE, 0, properties.getSegmentSize().toBytes());
+    activeBuffer.putInt(SEGMENT_MAGIC);
+    active = new Segment(path, timestamp, activeBuffer.position());
+    segments.add(active);
+
+    long maxSegments = Math.max(2,
+        properties.getMaxDiskSize().toBytes() / properties.getSegmentSize().toBytes());
+    while (segments.size() > maxSegments) {
+      Segment oldest = segments.remove(0);
+      Files.deleteIfExists(oldest.path);
+    }
+  }
+
+  private void closeActive() {
+    if (activeChannel == null) {
+      return;
+    }
+    try {
+      activeBuffer.force();
+      active.limit = activeBuffer.position();
+      activeChannel.close();
+    } catch (IOException e) {
+      logger().warn(getLoggerPrefix("closeActive") + "Unable to close segment {}: {}",
+          active.path, e.getMessage());
+    }
+    activeChannel = null;
+    activeBuffer = null;
+  }
+
+  private static void putString(ByteBuffer buffer, String value) {
+    if (value == null) {
+      buffer.putShort((short) -1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, 1024);
+    buffer.putShort((short) length);
+    buffer.put(bytes, 0, length);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    short length = buffer.getShort();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  private static boolean isSegment(Path path) {
+    String name = path.getFileName().toString();
+    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+  }
+
+  private static long firstTimestamp(Path path) {
+    String name = path.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.indexOf('-',
+        SEGMENT_PREFIX.length())));
+  }
+
+  private static class Segment {
+
+    private final Path path;
+    private final long firstTimestamp;
+
+    /**
+     * Published end of the written records, -1 for segments of a previous run (whole file).
+     */
+    private volatile long limit;
+
+    private Segment(Path path, long firstTimestamp, long limit) {
+      this.path = path;
+      this.firstTimestamp = firstTimestamp;
+      this.limit = limit;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Inverted index of a {@link RegistrySnapshot}, built once per snapshot version.
+ * <p>
+ * Instances are referenced by their position in the sorted snapshot, so an application name
+ * prefix is a position range and each status or indexed metadata value is a sorted position
+ * list. A query walks the shortest list and probes the others.
+ */
+final class RegistryIndex {
+
+  private static final int[] NONE = new int[0];
+
+  private final List<RegistryInstance> instances;
+  private final Map<String, int[]> byStatus;
+  private final Map<String, Map<String, int[]>> byMetadata;
+
+  RegistryIndex(List<RegistryInstance> instances, Collection<String> indexedMetadataKeys) {
+    this.instances = instances;
+    Map<String, List<Integer>> status = new HashMap<>();
+    Map<String, Map<String, List<Integer>>> metadata = new HashMap<>();
+    indexedMetadataKeys.forEach(key -> metadata.put(key, new HashMap<>()));
+    for (int i = 0; i < instances.size(); i++) {
+      RegistryInstance instance = instances.get(i);
+      status.computeIfAbsent(instance.getStatus(), k -> new ArrayList<>()).add(i);
+      for (Entry<String, Map<String, List<Integer>>> entry : metadata.entrySet()) {
+        String value = instance.getMetadata().get(entry.getKey());
+        if (value != null) {
+          entry.getValue().computeIfAbsent(value, k -> new ArrayList<>()).add(i);
+        }
+      }
+    }
+    this.byStatus = toPostings(status);
+    this.byMetadata = new HashMap<>();
+    metadata.forEach((key, values) -> byMetadata.put(key, toPostings(values)));
+  }
+
+  private static Map<String, int[]> toPostings(Map<String, List<Integer>> positions) {
+    Map<String, int[]> postings = new HashMap<>();
+    positions.forEach(
+        (key, list) -> postings.put(key, list.stream().mapToInt(Integer::intValue).toArray()));
+    return postings;
+  }
+
+  RegistryPage query(long version, RegistryQuery query) {
+    int from = 0;
+    int to = instances.size();
+    if (query.getAppPrefix() != null) {
+      from = lowerBound(query.getAppPrefix(), "");
+      to = lowerBound(query.getAppPrefix() + Character.MAX_VALUE, "");
+    }
+    int start = from;
+    if (query.getCursorAppName() != null) {
+      start = Math.max(from, lowerBound(query.getCursorAppName(), query.getCursorId() + "\0"));
+    }
+
+    List<int[]> postings = new ArrayList<>();
+    Map<String, String> scanned = new LinkedHashMap<>();
+    if (query.getStatus() != null) {
+      postings.add(byStatus.getOrDefault(query.getStatus(), NONE));
+    }
+    query.getMetadata().forEach((key, value) -> {
+      Map<String, int[]> values = byMetadata.get(key);
+      if (values == null) {
+        scanned.put(key, value);
+      } else {
+        postings.add(values.getOrDefault(value, NONE));
+      }
+    });
+    postings.sort(Comparator.comparingInt(positions -> positions.length));
+
+    PageBuilder page = new PageBuilder(start, query.getSize());
+    if (postings.isEmpty()) {
+      for (int position = from; position < to; position++) {
+        if (matches(position, postings, scanned)) {
+          page.add(position);
+        }
+      }
+    } else {
+      int[] driver = postings.remove(0);
+      for (int position : driver) {
+        if (position >= to) {
+          break;
+        }
+        if (position >= from && matches(position, postings, scanned)) {
+          page.add(position);
+        }
+      }
+    }
+    return new RegistryPage(version, page.total, page.nextCursor,
+        RegistrySnapshot.toApplications(page.instances, query.isWithMetadata()));
+  }
+
+  private boolean matches(int position, List<int[]> postings, Map<String, String> scanned) {
+    for (int[] positions : postings) {
+      if (Arrays.binarySearch(positions, position) < 0) {
+        return false;
+      }
+    }
+    if (!scanned.isEmpty()) {
+      Map<String, String> metadata = instances.get(position).getMetadata();
+      for (Entry<String, String> filter : scanned.entrySet()) {
+        if (!filter.getValue().equals(metadata.get(filter.getKey()))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the position of the first instance ordered at or after the given application name
+   * and instance id
+   */
+  private int lowerBound(String appName, String id) {
+    int low = 0;
+    int high = instances.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      RegistryInstance instance = instances.get(middle);
+      int comparison = instance.getAppName().compareTo(appName);
+      if (comparison == 0) {
+        comparison = instance.getId().compareTo(id);
+      }
+      if (comparison < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Counts every match and keeps the ones of the requested page.
+   */
+  private class PageBuilder {
+
+    private final int start;
+    private final int size;
+    private final List<RegistryInstance> instances = new ArrayList<>();
+    private int total;
+    private String nextCursor;
+
+    private PageBuilder(int start, int size) {
+      this.start = start;
+      this.size = size;
+    }
+
+    private void add(int position) {
+      total++;
+      if (position < start) {
+        return;
+      }
+      if (instances.size() < size) {
+        instances.add(RegistryIndex.this.instances.get(position));
+      } else if (nextCursor == null) {
+        nextCursor = RegistryQuery.toCursor(instances.get(instances.size() - 1));
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.InstanceInfo;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.jhapy.dto.registry.EurekaApplicationInstance;
+
+/**
+ * Immutable copy of the part of an Eureka {@link InstanceInfo} exposed by the registry API.
+ */
+public final class RegistryInstance {
+
+  /**
+   * Order of the instances in a snapshot: application name, then instance id.
+   */
+  public static final Comparator<RegistryInstance> ORDER = Comparator
+      .comparing(RegistryInstance::getAppName).thenComparing(RegistryInstance::getId);
+
+  private final String appName;
+  private final String id;
+  private final String instanceId;
+  private final String status;
+  private final String homePageUrl;
+  private final String healthCheckUrl;
+  private final String statusPageUrl;
+  private final Map<String, String> metadata;
+
+  public RegistryInstance(String appName, InstanceInfo info) {
+    this.appName = appName;
+    this.id = info.getId();
+    this.instanceId = info.getInstanceId();
+    this.status = info.getStatus().name();
+    this.homePageUrl = info.getHomePageUrl();
+    this.healthCheckUrl = info.getHealthCheckUrl();
+    this.statusPageUrl = info.getStatusPageUrl();
+    this.metadata = Collections.unmodifiableMap(new LinkedHashMap<>(info.getMetadata()));
+  }
+
+  public String getAppName() {
+    return appName;
+  }
+
+  /**
+   * @return the Eureka id of the instance, as used by renew and cancel requests
+   */
+  public String getId() {
+    return id;
+  }
+
+  public String getInstanceId() {
+    return instanceId;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public String getHomePageUrl() {
+    return homePageUrl;
+  }
+
+  public String getHealthCheckUrl() {
+    return healthCheckUrl;
+  }
+
+  public String getStatusPageUrl() {
+    return statusPageUrl;
+  }
+
+  public Map<String, String> getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * @return the key identifying this instance across snapshots
+   */
+  public String getKey() {
+    return appName + "/" + id;
+  }
+
+  public EurekaApplicationInstance toDto() {
+    return toDto(true);
+  }
+
+  /**
+   * @param withMetadata <code>false</code> to leave the metadata map out of the DTO
+   */
+  public EurekaApplicationInstance toDto(boolean withMetadata) {
+    EurekaApplicationInstance eurekaApplicationInstance = new EurekaApplicationInstance();
+    eurekaApplicationInstance.setInstanceId(instanceId);
+    eurekaApplicationInstance.setHomePageUrl(homePageUrl);
+    eurekaApplicationInstance.setHealthCheckUrl(healthCheckUrl);
+    eurekaApplicationInstance.setStatusPageUrl(statusPageUrl);
+    eurekaApplicationInstance.setStatus(status);
+    if (withMetadata) {
+      eurekaApplicationInstance.setMetadata(metadata);
+    }
+    return eurekaApplicationInstance;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    RegistryInstance that = (RegistryInstance) o;
+    return appName.equals(that.appName) && id.equals(that.id) && Objects
+        .equals(instanceId, that.instanceId) && status
+        .equals(that.status) && Objects.equals(homePageUrl, that.homePageUrl) && Objects
+        .equals(healthCheckUrl, that.healthCheckUrl) && Objects
+        .equals(statusPageUrl, that.statusPageUrl) && metadata.equals(that.metadata);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects
+        .hash(appName, id, instanceId, status, homePageUrl, healthCheckUrl, statusPageUrl,
+            metadata);
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.eureka.EurekaServerConfig;
+import com.netflix.eureka.cluster.PeerEurekaNode;
+import com.netflix.eureka.cluster.PeerEurekaNodes;
+import com.netflix.eureka.registry.AbstractInstanceRegistry;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistryImpl;
+import com.netflix.eureka.resources.ServerCodecs;
+import com.netflix.eureka.util.MeasuredRate;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import org.jhapy.commons.utils.HasLogger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.cloud.netflix.eureka.server.InstanceRegistry;
+import org.springframework.cloud.netflix.eureka.server.InstanceRegistryProperties;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRenewedEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Spring Cloud instance registry with a cheaper lease renewal.
+ * <p>
+ * To publish its renewal event, the Spring Cloud registry copies and sorts the whole registry on
+ * every heartbeat, replicated ones included. This one renews the lease first, through the Eureka
+ * implementation, then looks the renewed instance up by id for the event. The renewals per minute
+ * are counted in a {@link StripedMeasuredRate}. The peer replication of the heartbeat stays
+ * asynchronous: it is queued in the batching dispatcher of each peer, where it replaces the
+ * pending heartbeat of the same instance.
+ * <p>
+ * The renewal fast path splits a client heartbeat in two: {@link #renewLease} on the request
+ * thread, then {@link #renewed} from a {@link RenewalBatcher}, which replicates it and publishes
+ * its event.
+ * <p>
+ * A lease expired by the eviction task is published as a {@link LeaseExpiredEvent}, while a cancel
+ * requested by a client or a peer keeps the Spring Cloud events.
+ */
+public class RegistryInstanceRegistry extends InstanceRegistry implements HasLogger {
+
+  private static final long MEASURED_RATE_INTERVAL_MS = 60_000;
+
+  /**
+   * {@link PeerAwareInstanceRegistryImpl#renew}, called without going through the Spring Cloud
+   * override, <code>null</code> if it cannot be resolved.
+   */
+  private static final MethodHandle EUREKA_RENEW = eurekaRenew();
+
+  /**
+   * {@link AbstractInstanceRegistry#renew}, the lease renewal alone, <code>null</code> if it
+   * cannot be resolved.
+   */
+  private static final MethodHandle LEASE_RENEW = leaseRenew();
+
+  /**
+   * {@link AbstractInstanceRegistry#internalCancel}, without the Spring Cloud cancel event,
+   * <code>null</code> if it cannot be resolved.
+   */
+  private static final MethodHandle LEASE_CANCEL = leaseCancel();
+
+  /**
+   * Set while a cancel requested by a client or a peer goes through {@link #internalCancel}: the
+   * eviction task calls it directly.
+   */
+  private final ThreadLocal<Boolean> canceling = new ThreadLocal<>();
+
+  private ApplicationContext applicationContext;
+
+  public RegistryInstanceRegistry(EurekaServerConfig serverConfig,
+      EurekaClientConfig clientConfig, ServerCodecs serverCodecs, EurekaClient eurekaClient,
+      InstanceRegistryProperties instanceRegistryProperties) {
+    super(serverConfig, clientConfig, serverCodecs, eurekaClient,
+        instanceRegistryProperties.getExpectedNumberOfClientsSendingRenews(),
+        instanceRegistryProperties.getDefaultOpenForTrafficCount());
+    // Force the initialization of the client, as Spring Cloud does
+    eurekaClient.getApplications();
+    stripe(AbstractInstanceRegistry.class, "renewsLastMin");
+    stripe(PeerAwareInstanceRegistryImpl.class, "numberOfReplicationsLastMin");
+  }
+
+  @Override
+  public void setApplicationContext(ApplicationContext context) throws BeansException {
+    super.setApplicationContext(context);
+    this.applicationContext = context;
+  }
+
+  @Override
+  public boolean renew(String appName, String serverId, boolean isReplication) {
+    if (EUREKA_RENEW == null) {
+      return super.renew(appName, serverId, isReplication);
+    }
+    boolean renewed;
+    try {
+      renewed = (boolean) EUREKA_RENEW.invoke(this, appName, serverId, isReplication);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+    publishRenewed(appName, serverId, isReplication);
+    return renewed;
+  }
+
+  @Override
+  public boolean cancel(String appName, String serverId, boolean isReplication) {
+    canceling.set(Boolean.TRUE);
+    try {
+      return super.cancel(appName, serverId, isReplication);
+    } finally {
+      canceling.remove();
+    }
+  }
+
+  @Override
+  protected boolean internalCancel(String appName, String id, boolean isReplication) {
+    if (LEASE_CANCEL == null || canceling.get() != null) {
+      return super.internalCancel(appName, id, isReplication);
+    }
+    boolean canceled;
+    try {
+      canceled = (boolean) LEASE_CANCEL.invoke(this, appName, id, isReplication);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+    if (canceled && applicationContext != null) {
+      applicationContext.publishEvent(new LeaseExpiredEvent(this, appName, id));
+    }
+    return canceled;
+  }
+
+  /**
+   * Same event as the Spring Cloud registry: none for an unknown application, no instance for an
+   * unknown lease.
+   */
+  private void publishRenewed(String appName, String serverId, boolean isReplication) {
+    InstanceInfo instance = getInstanceByAppAndId(appName, serverId, false);
+    if (applicationContext != null && (instance != null
+        || getApplication(appName, false) != null)) {
+      applicationContext.publishEvent(
+          new EurekaInstanceRenewedEvent(this, appName, serverId, instance, isReplication));
+    }
+  }
+
+  /**
+   * Renew the lease of a client heartbeat, without replicating it nor publishing its event:
+   * {@link #renewed} has to be called for it later. A renewal of an unknown lease is published
+   * right away.
+   *
+   * @return <code>false</code> when the lease is unknown, the client has to register again
+   */
+  public boolean renewLease(String appName, String id) {
+    if (LEASE_RENEW == null) {
+      return renew(appName, id, false);
+    }
+    boolean renewed;
+    try {
+      renewed = (boolean) LEASE_RENEW.invoke(this, appName, id, false);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+    if (!renewed) {
+      publishRenewed(appName, id, false);
+    }
+    return renewed;
+  }
+
+  /**
+   * Complete client heartbeats whose lease was renewed by {@link #renewLease}: replicate the
+   * heartbeat to the peers and publish a single renewal event. Nothing is done for an instance
+   * canceled or expired in the meantime.
+   *
+   * @param count the number of heartbeats of the instance since the last call
+   */
+  public void renewed(String appName, String id, int count) {
+    if (LEASE_RENEW == null) {
+      // renewLease already went through the whole renewal
+      return;
+    }
+    InstanceInfo instance = getInstanceByAppAndId(appName, id, false);
+    if (instance == null) {
+      return;
+    }
+    PeerEurekaNodes nodes = peerEurekaNodes;
+    if (nodes != null) {
+      InstanceStatus overriddenStatus = overriddenInstanceStatusMap.get(id);
+      for (PeerEurekaNode node : nodes.getPeerEurekaNodes()) {
+        if (nodes.isThisMyUrl(node.getServiceUrl())) {
+          continue;
+        }
+        try {
+          node.heartbeat(appName, id, instance, overriddenStatus, false);
+        } catch (Throwable e) {
+          logger().error(getLoggerPrefix("renewed")
+              + "Cannot replicate the heartbeat of {}/{} to {}", appName, id,
+              node.getServiceUrl(), e);
+        }
+      }
+    }
+    if (applicationContext != null) {
+      applicationContext
+          .publishEvent(new CoalescedRenewalEvent(this, appName, id, instance, count));
+    }
+  }
+
+  private void stripe(Class<?> owner, String fieldName) {
+    Field field = ReflectionUtils.findField(owner, fieldName, MeasuredRate.class);
+    if (field == null) {
+      logger().warn(getLoggerPrefix("stripe") + "No {} in the Eureka registry", fieldName);
+      return;
+    }
+    ReflectionUtils.makeAccessible(field);
+    MeasuredRate replaced = (MeasuredRate) ReflectionUtils.getField(field, this);
+    ReflectionUtils.setField(field, this, new StripedMeasuredRate(MEASURED_RATE_INTERVAL_MS));
+    if (replaced != null) {
+      replaced.stop();
+      StripedMeasuredRate.cancelTimer(replaced);
+    }
+  }
+
+  private static MethodHandle eurekaRenew() {
+    try {
+      // A special call from the Spring Cloud registry resolves to the method of its superclass
+      return MethodHandles.privateLookupIn(InstanceRegistry.class, MethodHandles.lookup())
+          .findSpecial(PeerAwareInstanceRegistryImpl.class, "renew",
+              MethodType.methodType(boolean.class, String.class, String.class, boolean.class),
+              InstanceRegistry.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LoggerFactory.getLogger(RegistryInstanceRegistry.class)
+          .warn("Spring Cloud lease renewal kept: {}", e.toString());
+      return null;
+    }
+  }
+
+  private static MethodHandle leaseRenew() {
+    try {
+      // Called from this class, a special call would resolve to the Spring Cloud override
+      return MethodHandles
+          .privateLookupIn(PeerAwareInstanceRegistryImpl.class, MethodHandles.lookup())
+          .findSpecial(AbstractInstanceRegistry.class, "renew",
+              MethodType.methodType(boolean.class, String.class, String.class, boolean.class),
+              PeerAwareInstanceRegistryImpl.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LoggerFactory.getLogger(RegistryInstanceRegistry.class)
+          .warn("Renewal batching disabled: {}", e.toString());
+      return null;
+    }
+  }
+
+  private static MethodHandle leaseCancel() {
+    try {
+      return MethodHandles
+          .privateLookupIn(PeerAwareInstanceRegistryImpl.class, MethodHandles.lookup())
+          .findSpecial(AbstractInstanceRegistry.class, "internalCancel",
+              MethodType.methodType(boolean.class, String.class, String.class, boolean.class),
+              PeerAwareInstanceRegistryImpl.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LoggerFactory.getLogger(RegistryInstanceRegistry.class)
+          .warn("Expired leases published as cancels: {}", e.toString());
+      return null;
+    }
+  }
+}
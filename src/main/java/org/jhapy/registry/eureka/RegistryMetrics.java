@@ -0,0 +1,279 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import com.netflix.eureka.registry.ResponseCache;
+import com.netflix.eureka.registry.ResponseCacheImpl;
+import com.netflix.eureka.util.EurekaMonitors;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Stopwatch;
+import com.netflix.servo.monitor.TimedStopwatch;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jhapy.commons.utils.HasLogger;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRenewedEvent;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaRegistryAvailableEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Meters of the Eureka server work: lease traffic per application, registry size, and the
+ * response cache serving <code>/eureka/apps</code>.
+ * <p>
+ * Rates are exposed as counters, the monitoring backend derives the per second values. The
+ * response cache payload regeneration time is measured by replacing the servo timers of {@link
+ * ResponseCacheImpl}, which only keep the current step, once the registry is available. The peer
+ * replication meters are recorded by {@link InstrumentedReplicationClient}.
+ */
+@Component
+public class RegistryMetrics implements MeterBinder, HasLogger {
+
+  public static final String RENEWS = "registry.eureka.renews";
+  public static final String REGISTRATIONS = "registry.eureka.registrations";
+  public static final String CANCELS = "registry.eureka.cancels";
+  public static final String EXPIRATIONS = "registry.eureka.expirations";
+  public static final String INSTANCES = "registry.eureka.instances";
+  public static final String RESPONSE_CACHE_REQUESTS = "registry.eureka.response.cache.requests";
+  public static final String RESPONSE_CACHE_MISSES = "registry.eureka.response.cache.misses";
+  public static final String RESPONSE_CACHE_GENERATION =
+      "registry.eureka.response.cache.generation";
+  public static final String RESPONSE_CACHE_SIZE = "registry.eureka.response.cache.size";
+  public static final String REPLICATION_BATCHES = "registry.eureka.replication.batches";
+  public static final String REPLICATION_BATCH_SIZE = "registry.eureka.replication.batch.size";
+  public static final String REPLICATION_QUEUE = "registry.eureka.replication.queue";
+  public static final String REPLICATION_TASKS = "registry.eureka.replication.tasks";
+
+  private final PeerAwareInstanceRegistry registry;
+
+  private final Map<String, Counter[]> renewCounters = new ConcurrentHashMap<>();
+
+  private volatile MeterRegistry meterRegistry;
+  private MultiGauge instances;
+  private Timer fullGeneration;
+  private Timer deltaGeneration;
+
+  /**
+   * @param applicationInfoManager only required to exist: {@link EurekaMonitors} reads the
+   * instance info of its singleton when first used
+   */
+  public RegistryMetrics(PeerAwareInstanceRegistry registry,
+      ApplicationInfoManager applicationInfoManager) {
+    this.registry = registry;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry meterRegistry) {
+    payloadCounter(meterRegistry, RESPONSE_CACHE_REQUESTS, "full", EurekaMonitors.GET_ALL,
+        "Registry fetches");
+    payloadCounter(meterRegistry, RESPONSE_CACHE_REQUESTS, "delta", EurekaMonitors.GET_ALL_DELTA,
+        "Registry fetches");
+    payloadCounter(meterRegistry, RESPONSE_CACHE_MISSES, "full",
+        EurekaMonitors.GET_ALL_CACHE_MISS, "Registry fetches not answered by the response cache");
+    payloadCounter(meterRegistry, RESPONSE_CACHE_MISSES, "delta",
+        EurekaMonitors.GET_ALL_CACHE_MISS_DELTA,
+        "Registry fetches not answered by the response cache");
+    FunctionCounter.builder(EXPIRATIONS, EurekaMonitors.EXPIRED, EurekaMonitors::getCount)
+        .description("Leases expired by the eviction task").register(meterRegistry);
+    Gauge.builder(RESPONSE_CACHE_SIZE, registry, RegistryMetrics::responseCacheSize)
+        .description("Payloads held by the response cache").register(meterRegistry);
+    fullGeneration = generationTimer(meterRegistry, "full");
+    deltaGeneration = generationTimer(meterRegistry, "delta");
+    instances = MultiGauge.builder(INSTANCES).description("Registered instances per application")
+        .register(meterRegistry);
+    this.meterRegistry = meterRegistry;
+  }
+
+  @EventListener
+  public void onInstanceRenewed(EurekaInstanceRenewedEvent event) {
+    MeterRegistry meters = meterRegistry;
+    if (meters == null) {
+      return;
+    }
+    // Renewals are the most frequent requests: no allocation once the application is known
+    Counter[] counters = renewCounters.get(event.getAppName());
+    if (counters == null) {
+      counters = renewCounters.computeIfAbsent(event.getAppName(),
+          app -> new Counter[]{renewCounter(meters, app, false), renewCounter(meters, app, true)});
+    }
+    counters[event.isReplication() ? 1 : 0].increment(event instanceof CoalescedRenewalEvent
+        ? ((CoalescedRenewalEvent) event).getCount() : 1);
+  }
+
+  @EventListener
+  public void onRegistryEvent(RegistryEvent event) {
+    MeterRegistry meters = meterRegistry;
+    if (meters == null) {
+      return;
+    }
+    String name;
+    if (event.getType() == RegistryEvent.Type.REGISTERED) {
+      name = REGISTRATIONS;
+    } else if (event.getType() == RegistryEvent.Type.CANCELED) {
+      // Cancels requested by the clients or the peers: expired leases are EXPIRATIONS
+      name = CANCELS;
+    } else {
+      return;
+    }
+    Counter.builder(name).tag("app", event.getAppName())
+        .tag("replication", String.valueOf(event.isReplication())).register(meters).increment();
+  }
+
+  @EventListener
+  public void onSnapshotChanged(RegistrySnapshotChangedEvent event) {
+    MultiGauge gauge = instances;
+    if (gauge == null) {
+      return;
+    }
+    List<MultiGauge.Row<?>> rows = new ArrayList<>();
+    String currentApp = null;
+    int count = 0;
+    for (RegistryInstance instance : event.getCurrent().getInstances()) {
+      if (!instance.getAppName().equals(currentApp)) {
+        if (currentApp != null) {
+          rows.add(MultiGauge.Row.of(Tags.of("app", currentApp), count));
+        }
+        currentApp = instance.getAppName();
+        count = 0;
+      }
+      count++;
+    }
+    if (currentApp != null) {
+      rows.add(MultiGauge.Row.of(Tags.of("app", currentApp), count));
+    }
+    gauge.register(rows, true);
+  }
+
+  @EventListener
+  public void onRegistryAvailable(EurekaRegistryAvailableEvent event) {
+    String loggerPrefix = getLoggerPrefix("onRegistryAvailable");
+    ResponseCache responseCache = registry.getResponseCache();
+    if (fullGeneration == null || !(responseCache instanceof ResponseCacheImpl)) {
+      logger().warn(loggerPrefix + "Response cache payload generation not instrumented");
+      return;
+    }
+    bridge(responseCache, "serializeAllAppsTimer", fullGeneration);
+    bridge(responseCache, "serializeDeltaAppsTimer", deltaGeneration);
+  }
+
+  private void bridge(ResponseCache responseCache, String fieldName, Timer timer) {
+    Field field = ReflectionUtils.findField(ResponseCacheImpl.class, fieldName);
+    if (field == null) {
+      logger().warn(getLoggerPrefix("bridge") + "No {} in the Eureka response cache", fieldName);
+      return;
+    }
+    ReflectionUtils.makeAccessible(field);
+    Object current = ReflectionUtils.getField(field, responseCache);
+    if (current instanceof com.netflix.servo.monitor.Timer && !(current instanceof ServoTimer)) {
+      ReflectionUtils.setField(field, responseCache,
+          new ServoTimer((com.netflix.servo.monitor.Timer) current, timer));
+    }
+  }
+
+  private static Counter renewCounter(MeterRegistry meterRegistry, String app,
+      boolean replication) {
+    return Counter.builder(RENEWS).tag("app", app).tag("replication", String.valueOf(replication))
+        .description("Lease renewals").register(meterRegistry);
+  }
+
+  private static void payloadCounter(MeterRegistry meterRegistry, String name, String payload,
+      EurekaMonitors monitor, String description) {
+    FunctionCounter.builder(name, monitor, EurekaMonitors::getCount).tag("payload", payload)
+        .description(description).register(meterRegistry);
+  }
+
+  private static Timer generationTimer(MeterRegistry meterRegistry, String payload) {
+    return Timer.builder(RESPONSE_CACHE_GENERATION).tag("payload", payload)
+        .description("Serialization of the registry payloads on response cache misses")
+        .register(meterRegistry);
+  }
+
+  private static double responseCacheSize(PeerAwareInstanceRegistry registry) {
+    ResponseCache responseCache = registry.getResponseCache();
+    return responseCache instanceof ResponseCacheImpl
+        ? ((ResponseCacheImpl) responseCache).getCurrentSize() : Double.NaN;
+  }
+
+  /**
+   * Servo timer recording to both the replaced Eureka timer and a Micrometer one.
+   */
+  private static class ServoTimer implements com.netflix.servo.monitor.Timer {
+
+    private final com.netflix.servo.monitor.Timer delegate;
+    private final Timer timer;
+
+    private ServoTimer(com.netflix.servo.monitor.Timer delegate, Timer timer) {
+      this.delegate = delegate;
+      this.timer = timer;
+    }
+
+    @Override
+    public Stopwatch start() {
+      Stopwatch stopwatch = new TimedStopwatch(this);
+      stopwatch.start();
+      return stopwatch;
+    }
+
+    @Override
+    public TimeUnit getTimeUnit() {
+      return delegate.getTimeUnit();
+    }
+
+    @Override
+    @Deprecated
+    public void record(long duration) {
+      record(duration, getTimeUnit());
+    }
+
+    @Override
+    public void record(long duration, TimeUnit timeUnit) {
+      delegate.record(duration, timeUnit);
+      timer.record(duration, timeUnit);
+    }
+
+    @Override
+    public Long getValue() {
+      return delegate.getValue();
+    }
+
+    @Override
+    public Long getValue(int pollerIndex) {
+      return delegate.getValue(pollerIndex);
+    }
+
+    @Override
+    public MonitorConfig getConfig() {
+      return delegate.getConfig();
+    }
+  }
+}
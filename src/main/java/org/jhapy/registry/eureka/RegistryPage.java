@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import java.util.List;
+import org.jhapy.dto.registry.EurekaApplication;
+
+/**
+ * One page of a filtered registry query.
+ */
+public class RegistryPage {
+
+  private final long version;
+  private final int total;
+  private final String nextCursor;
+  private final List<EurekaApplication> applicationList;
+
+  public RegistryPage(long version, int total, String nextCursor,
+      List<EurekaApplication> applicationList) {
+    this.version = version;
+    this.total = total;
+    this.nextCursor = nextCursor;
+    this.applicationList = applicationList;
+  }
+
+  /**
+   * @return the snapshot version the page was read from
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the number of instances matching the filters, across all pages
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the cursor of the next page, <code>null</code> on the last page
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public List<EurekaApplication> getApplicationList() {
+    return applicationList;
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.eureka.EurekaServerConfig;
+import com.netflix.eureka.cluster.HttpReplicationClient;
+import com.netflix.eureka.cluster.PeerEurekaNode;
+import com.netflix.eureka.cluster.PeerEurekaNodes;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import com.netflix.eureka.resources.ServerCodecs;
+import com.netflix.eureka.transport.JerseyReplicationClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.jhapy.registry.dns.DnsCache;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.cloud.netflix.eureka.server.ReplicationClientAdditionalFilters;
+import org.springframework.context.ApplicationListener;
+
+/**
+ * Peer nodes of this Eureka server, refreshed like the Spring Cloud default when the service
+ * URLs change.
+ * <p>
+ * A peer URL is recognized as this server when its host resolves, through the {@link DnsCache},
+ * to the address of this instance, not only when the host names are equal: in Docker the peers
+ * are usually listed by service name or address while the instance advertises its container
+ * host name.
+ * <p>
+ * The replication clients are wrapped to record per peer batch and queue metrics, and compress
+ * the batches. Eureka already queues the replication tasks per peer, in a bounded queue where a
+ * renewal replaces the pending one of the same instance, and sends them in batches: the batch
+ * size and batching window, fixed by the public {@link PeerEurekaNode} constructor, are set from
+ * {@link RegistryProperties.Replication}.
+ */
+public class RegistryPeerEurekaNodes extends PeerEurekaNodes implements
+    ApplicationListener<EnvironmentChangeEvent>, HasLogger {
+
+  /**
+   * Eureka defaults of the delays before a batch is sent again after a failure.
+   */
+  private static final long RETRY_SLEEP_TIME_MS = 100;
+  private static final long SERVER_UNAVAILABLE_SLEEP_TIME_MS = 1000;
+
+  private final ReplicationClientAdditionalFilters replicationClientAdditionalFilters;
+  private final DnsCache dnsCache;
+  private final MeterRegistry meterRegistry;
+  private final RegistryProperties.Replication replication;
+  private final Map<String, InstrumentedReplicationClient> replicationClients =
+      new ConcurrentHashMap<>();
+
+  public RegistryPeerEurekaNodes(PeerAwareInstanceRegistry registry,
+      EurekaServerConfig serverConfig, EurekaClientConfig clientConfig,
+      ServerCodecs serverCodecs, ApplicationInfoManager applicationInfoManager,
+      ReplicationClientAdditionalFilters replicationClientAdditionalFilters,
+      DnsCache dnsCache, MeterRegistry meterRegistry, RegistryProperties registryProperties) {
+    super(registry, serverConfig, clientConfig, serverCodecs, applicationInfoManager);
+    this.replicationClientAdditionalFilters = replicationClientAdditionalFilters;
+    this.dnsCache = dnsCache;
+    this.meterRegistry = meterRegistry;
+    this.replication = registryProperties.getReplication();
+  }
+
+  @Override
+  protected PeerEurekaNode createPeerEurekaNode(String peerEurekaNodeUrl) {
+    JerseyReplicationClient replicationClient = JerseyReplicationClient
+        .createReplicationClient(serverConfig, serverCodecs, peerEurekaNodeUrl);
+    replicationClientAdditionalFilters.getFilters()
+        .forEach(replicationClient::addReplicationClientFilter);
+    if (replication.isCompression()) {
+      replicationClient.addReplicationClientFilter(new ReplicationCompressionFilter());
+    }
+    String targetHost = hostFromUrl(peerEurekaNodeUrl);
+    if (targetHost == null) {
+      targetHost = "host";
+    }
+    // The peer tag must not leak the credentials of the service URL
+    String peer = peerEurekaNodeUrl.replaceFirst("//[^/@]*@", "//");
+    InstrumentedReplicationClient client = new InstrumentedReplicationClient(replicationClient,
+        peer, meterRegistry);
+    PeerEurekaNode node = newPeerEurekaNode(targetHost, peerEurekaNodeUrl, client);
+    client.bindQueue(node);
+    replicationClients.put(peerEurekaNodeUrl, client);
+    return node;
+  }
+
+  @Override
+  protected void updatePeerEurekaNodes(List<String> newPeerUrls) {
+    super.updatePeerEurekaNodes(newPeerUrls);
+    replicationClients.keySet().retainAll(newPeerUrls);
+  }
+
+  /**
+   * @return the client replicating to the peer with the given service URL, <code>null</code> if
+   * it is not a current peer
+   */
+  InstrumentedReplicationClient getReplicationClient(String peerEurekaNodeUrl) {
+    return replicationClients.get(peerEurekaNodeUrl);
+  }
+
+  /**
+   * Create the node with the configured batching, through the package-private constructor of
+   * {@link PeerEurekaNode}, or with the Eureka defaults if it is not available.
+   */
+  private PeerEurekaNode newPeerEurekaNode(String targetHost, String peerEurekaNodeUrl,
+      InstrumentedReplicationClient client) {
+    try {
+      Constructor<PeerEurekaNode> constructor = PeerEurekaNode.class.getDeclaredConstructor(
+          PeerAwareInstanceRegistry.class, String.class, String.class,
+          HttpReplicationClient.class, EurekaServerConfig.class, int.class, long.class,
+          long.class, long.class);
+      constructor.setAccessible(true);
+      return constructor.newInstance(registry, targetHost, peerEurekaNodeUrl, client,
+          serverConfig, replication.getBatchSize(), replication.getBatchingDelay().toMillis(),
+          RETRY_SLEEP_TIME_MS, SERVER_UNAVAILABLE_SLEEP_TIME_MS);
+    } catch (NoSuchMethodException | InstantiationException | IllegalAccessException e) {
+      logger().warn(getLoggerPrefix("newPeerEurekaNode")
+          + "Replication batching not configurable, using the Eureka defaults: {}", e.toString());
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    return new PeerEurekaNode(registry, targetHost, peerEurekaNodeUrl, client, serverConfig);
+  }
+
+  @Override
+  public boolean isInstanceURL(String url, InstanceInfo instance) {
+    if (super.isInstanceURL(url, instance)) {
+      return true;
+    }
+    String host = hostFromUrl(url);
+    if (host == null || instance.getIPAddr() == null) {
+      return false;
+    }
+    try {
+      for (InetAddress address : dnsCache.resolve(host)) {
+        if (address.getHostAddress().equals(instance.getIPAddr())) {
+          return true;
+        }
+      }
+    } catch (UnknownHostException e) {
+      logger().warn(getLoggerPrefix("isInstanceURL") + "Unable to resolve peer {}: {}", url,
+          e.getMessage());
+    }
+    return false;
+  }
+
+  @Override
+  public void onApplicationEvent(EnvironmentChangeEvent event) {
+    if (shouldUpdate(event.getKeys())) {
+      updatePeerEurekaNodes(resolvePeerUrls());
+    }
+  }
+
+  protected boolean shouldUpdate(Set<String> changedKeys) {
+    if (clientConfig.shouldUseDnsForFetchingServiceUrls()) {
+      return false;
+    }
+    if (changedKeys.contains("eureka.client.region")) {
+      return true;
+    }
+    for (String key : changedKeys) {
+      if (key.startsWith("eureka.client.service-url.")
+          || key.startsWith("eureka.client.availability-zones.")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.LeaseInfo;
+import com.netflix.discovery.converters.wrappers.CodecWrapper;
+import com.netflix.discovery.converters.wrappers.CodecWrappers;
+import com.netflix.discovery.shared.Application;
+import com.netflix.eureka.lease.Lease;
+import com.netflix.eureka.registry.AbstractInstanceRegistry;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Saves the registry content to disk and reloads it when the server starts, so a restarted node
+ * serves the known instances right away instead of waiting for the peers sync or for every client
+ * to register again.
+ * <p>
+ * The file is a gzip stream of <code>magic, format, creation time, count</code> followed, for
+ * each instance, by its last renewal timestamp, its lease duration and its Eureka JSON encoding.
+ * Instances whose lease expired since the last renewal are skipped on reload, the others are
+ * registered again (as replicated registrations, not forwarded to the peers) with their saved
+ * renewal timestamp, so they are evicted at the same time as without the restart if their client
+ * does not renew.
+ */
+@Component
+public class RegistryPersistence implements SmartLifecycle, HasLogger {
+
+  /**
+   * Started before the Eureka server initializer (phase 0) so the registry is filled before the
+   * server opens for traffic.
+   */
+  private static final int PHASE = -1;
+
+  private static final int MAGIC = 0x4A485253;
+  private static final int FORMAT = 1;
+
+  private final PeerAwareInstanceRegistry registry;
+  private final TaskScheduler taskScheduler;
+  private final RegistryProperties.Persistence properties;
+  private final CodecWrapper codec = CodecWrappers.getCodec(CodecWrappers.JacksonJson.class);
+  private final Field registryField =
+      accessibleField(AbstractInstanceRegistry.class, "registry");
+  private final Field lastUpdateField = accessibleField(Lease.class, "lastUpdateTimestamp");
+
+  private volatile boolean running;
+  private ScheduledFuture<?> saveTask;
+
+  public RegistryPersistence(PeerAwareInstanceRegistry registry, TaskScheduler taskScheduler,
+      RegistryProperties registryProperties) {
+    this.registry = registry;
+    this.taskScheduler = taskScheduler;
+    this.properties = registryProperties.getPersistence();
+  }
+
+  @Override
+  public void start() {
+    if (!properties.isEnabled()) {
+      return;
+    }
+    load();
+    saveTask = taskScheduler.scheduleWithFixedDelay(this::save, properties.getInterval());
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    if (!running) {
+      return;
+    }
+    saveTask.cancel(false);
+    save();
+    running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  @Override
+  public int getPhase() {
+    return PHASE;
+  }
+
+  /**
+   * Register again the instances of the saved file whose lease is still valid.
+   */
+  public void load() {
+    String loggerPrefix = getLoggerPrefix("load");
+    if (registryField == null || lastUpdateField == null) {
+      logger().warn(loggerPrefix + "Eureka lease internals not found, "
+          + "restored instances get a new lease");
+    }
+    Path file = Paths.get(properties.getFile());
+    long now = System.currentTimeMillis();
+    int restored = 0;
+    int expired = 0;
+    try (DataInputStream in = new DataInputStream(
+        new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+        logger().warn(loggerPrefix + "Ignoring {}: unknown format", file);
+        return;
+      }
+      long createdAt = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        long lastRenewal = in.readLong();
+        int duration = in.readInt();
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        if (lastRenewal + duration * 1000L < now) {
+          expired++;
+          continue;
+        }
+        InstanceInfo info = codec
+            .decode(new String(encoded, StandardCharsets.UTF_8), InstanceInfo.class);
+        registry.register(info, duration, true);
+        restoreRenewal(info, lastRenewal);
+        restored++;
+      }
+      logger().info(loggerPrefix + "Restored {} instances saved at {}, skipped {} expired",
+          restored, createdAt, expired);
+    } catch (NoSuchFileException e) {
+      logger().info(loggerPrefix + "No saved registry found at {}", file);
+    } catch (IOException | RuntimeException e) {
+      logger().error(loggerPrefix + "Unable to restore registry from " + file + ", "
+          + restored + " instances restored", e);
+    }
+  }
+
+  /**
+   * Write the current registry content, replacing the previous file atomically.
+   */
+  public synchronized void save() {
+    String loggerPrefix = getLoggerPrefix("save");
+    Path file = Paths.get(properties.getFile()).toAbsolutePath();
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    List<InstanceInfo> instances = new ArrayList<>();
+    for (Application app : registry.getApplications().getRegisteredApplications()) {
+      instances.addAll(app.getInstancesAsIsFromEureka());
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      try (DataOutputStream out = new DataOutputStream(
+          new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(instances.size());
+        for (InstanceInfo info : instances) {
+          LeaseInfo leaseInfo = info.getLeaseInfo();
+          out.writeLong(leaseInfo == null ? System.currentTimeMillis()
+              : leaseInfo.getRenewalTimestamp());
+          out.writeInt(leaseInfo == null ? LeaseInfo.DEFAULT_LEASE_DURATION
+              : leaseInfo.getDurationInSecs());
+          byte[] encoded = codec.encode(info).getBytes(StandardCharsets.UTF_8);
+          out.writeInt(encoded.length);
+          out.write(encoded);
+        }
+      }
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      logger().debug(loggerPrefix + "Saved {} instances to {}", instances.size(), file);
+    } catch (IOException | RuntimeException e) {
+      logger().error(loggerPrefix + "Unable to save registry to " + file, e);
+    }
+  }
+
+  /**
+   * Put back the saved renewal timestamp on the lease created by the registration, so the
+   * instance expires when it would have without the restart.
+   */
+  @SuppressWarnings("unchecked")
+  private void restoreRenewal(InstanceInfo info, long lastRenewal) {
+    if (registryField == null || lastUpdateField == null) {
+      return;
+    }
+    Map<String, Map<String, Lease<InstanceInfo>>> leases =
+        (Map<String, Map<String, Lease<InstanceInfo>>>) ReflectionUtils
+            .getField(registryField, registry);
+    Map<String, Lease<InstanceInfo>> appLeases = leases.get(info.getAppName());
+    Lease<InstanceInfo> lease = appLeases == null ? null : appLeases.get(info.getId());
+    if (lease != null) {
+      ReflectionUtils.setField(lastUpdateField, lease, lastRenewal);
+    }
+  }
+
+  private static Field accessibleField(Class<?> type, String name) {
+    Field field = ReflectionUtils.findField(type, name);
+    if (field != null) {
+      ReflectionUtils.makeAccessible(field);
+    }
+    return field;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Criteria of a filtered, paginated registry query.
+ */
+public class RegistryQuery {
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  private final String appPrefix;
+  private final String status;
+  private final Map<String, String> metadata;
+  private final boolean withMetadata;
+  private final String cursorAppName;
+  private final String cursorId;
+  private final int size;
+
+  /**
+   * @param appPrefix application name prefix, case insensitive
+   * @param status instance status (<code>UP</code>, <code>DOWN</code>, ...)
+   * @param metadata metadata filters, each one formatted as <code>key:value</code>
+   * @param withMetadata <code>false</code> to leave the instances metadata out of the result
+   * @param cursor the <code>nextCursor</code> of the previous page
+   * @param size maximum number of instances returned, capped to {@link #MAX_PAGE_SIZE}
+   * @throws IllegalArgumentException when a metadata filter or the cursor is malformed
+   */
+  public RegistryQuery(String appPrefix, String status, List<String> metadata,
+      boolean withMetadata, String cursor, Integer size) {
+    this.appPrefix = appPrefix == null ? null : appPrefix.toUpperCase(Locale.ROOT);
+    this.status = status == null ? null : status.toUpperCase(Locale.ROOT);
+    Map<String, String> filters = new LinkedHashMap<>();
+    if (metadata != null) {
+      for (String filter : metadata) {
+        int separator = filter.indexOf(':');
+        if (separator <= 0) {
+          throw new IllegalArgumentException("Metadata filter must be 'key:value': " + filter);
+        }
+        filters.put(filter.substring(0, separator), filter.substring(separator + 1));
+      }
+    }
+    this.metadata = Collections.unmodifiableMap(filters);
+    this.withMetadata = withMetadata;
+    if (cursor != null) {
+      String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      int separator = key.indexOf('/');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+      }
+      this.cursorAppName = key.substring(0, separator);
+      this.cursorId = key.substring(separator + 1);
+    } else {
+      this.cursorAppName = null;
+      this.cursorId = null;
+    }
+    this.size = size == null || size <= 0 ? DEFAULT_PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+  }
+
+  static String toCursor(RegistryInstance instance) {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(instance.getKey().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public String getAppPrefix() {
+    return appPrefix;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public Map<String, String> getMetadata() {
+    return metadata;
+  }
+
+  public boolean isWithMetadata() {
+    return withMetadata;
+  }
+
+  public String getCursorAppName() {
+    return cursorAppName;
+  }
+
+  public String getCursorId() {
+    return cursorId;
+  }
+
+  public int getSize() {
+    return size;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jhapy.dto.registry.EurekaApplication;
+import org.jhapy.dto.registry.EurekaApplicationInstance;
+
+/**
+ * Immutable view of the Eureka registry at a given version.
+ * <p>
+ * Instances are sorted by application name then instance id, and the JSON payload served by
+ * <code>/api/eureka/applications</code> is serialized once when the snapshot is built. Versions
+ * are seeded from the clock when the server starts so they keep increasing across restarts. A
+ * {@link RegistryIndex} built with the snapshot answers filtered queries.
+ */
+public final class RegistrySnapshot {
+
+  private final long version;
+  private final long createdAt;
+  private final List<RegistryInstance> instances;
+  private final Map<String, RegistryInstance> instancesByKey;
+  private final byte[] payload;
+  private final RegistryIndex index;
+
+  RegistrySnapshot(long version, long createdAt, List<RegistryInstance> instances,
+      byte[] payload, Collection<String> indexedMetadataKeys) {
+    this.version = version;
+    this.createdAt = createdAt;
+    this.instances = Collections.unmodifiableList(instances);
+    Map<String, RegistryInstance> byKey = new LinkedHashMap<>();
+    instances.forEach(instance -> byKey.put(instance.getKey(), instance));
+    this.instancesByKey = Collections.unmodifiableMap(byKey);
+    this.payload = payload;
+    this.index = new RegistryIndex(this.instances, indexedMetadataKeys);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the strong HTTP entity tag of this snapshot
+   */
+  public String getEtag() {
+    return "\"" + version + "\"";
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public List<RegistryInstance> getInstances() {
+    return instances;
+  }
+
+  public RegistryInstance getInstance(String appName, String instanceId) {
+    return instancesByKey.get(appName + "/" + instanceId);
+  }
+
+  Map<String, RegistryInstance> getInstancesByKey() {
+    return instancesByKey;
+  }
+
+  /**
+   * @return the pre-serialized JSON payload, shared by all readers: it must not be modified
+   */
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * Run a filtered, paginated query against the index of this snapshot.
+   */
+  public RegistryPage query(RegistryQuery query) {
+    return index.query(version, query);
+  }
+
+  /**
+   * Group the given instances, sorted by application name, into application DTOs.
+   */
+  public static List<EurekaApplication> toApplications(List<RegistryInstance> instances) {
+    return toApplications(instances, true);
+  }
+
+  /**
+   * Group the given instances, sorted by application name, into application DTOs.
+   *
+   * @param withMetadata <code>false</code> to leave the instances metadata out
+   */
+  public static List<EurekaApplication> toApplications(List<RegistryInstance> instances,
+      boolean withMetadata) {
+    List<EurekaApplication> apps = new ArrayList<>();
+    String currentName = null;
+    List<EurekaApplicationInstance> currentInstances = null;
+    for (RegistryInstance instance : instances) {
+      if (!instance.getAppName().equals(currentName)) {
+        currentName = instance.getAppName();
+        EurekaApplication current = new EurekaApplication();
+        current.setName(currentName);
+        currentInstances = new ArrayList<>();
+        current.setInstances(currentInstances);
+        apps.add(current);
+      }
+      currentInstances.add(instance.toDto(withMetadata));
+    }
+    return apps;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published, synchronously, each time {@link RegistrySnapshotHolder} builds a new version.
+ */
+public class RegistrySnapshotChangedEvent extends ApplicationEvent {
+
+  private static final long serialVersionUID = 1L;
+
+  private final RegistrySnapshot previous;
+  private final RegistrySnapshot current;
+
+  public RegistrySnapshotChangedEvent(Object source, RegistrySnapshot previous,
+      RegistrySnapshot current) {
+    super(source);
+    this.previous = previous;
+    this.current = current;
+  }
+
+  /**
+   * @return the replaced snapshot, <code>null</code> for the first one
+   */
+  public RegistrySnapshot getPrevious() {
+    return previous;
+  }
+
+  public RegistrySnapshot getCurrent() {
+    return current;
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.shared.Application;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.dto.registry.EurekaInfo;
+import org.jhapy.dto.serviceQuery.ServiceResult;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceCanceledEvent;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRegisteredEvent;
+import org.springframework.cloud.netflix.eureka.server.event.EurekaInstanceRenewedEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps an immutable, pre-serialized {@link RegistrySnapshot} of the Eureka registry.
+ * <p>
+ * The snapshot is rebuilt only when the registry content changes: registrations and
+ * cancellations mark it dirty, renewals only when they carry a new status, and a periodic
+ * comparison catches the remaining changes (status overrides, metadata updates). Readers get the
+ * current snapshot without any allocation. The instances of the last versions are kept to answer
+ * delta requests.
+ * <p>
+ * The {@link RegistrySnapshotChangedEvent}s are published in version order once the snapshot is
+ * built, outside of the build lock: a reader waiting for a rebuild does not wait for the
+ * listeners of the previous one.
+ */
+@Component
+public class RegistrySnapshotHolder implements HasLogger {
+
+  private final PeerAwareInstanceRegistry registry;
+  private final ObjectMapper objectMapper;
+  private final TaskScheduler taskScheduler;
+  private final RegistryProperties registryProperties;
+  private final ApplicationEventPublisher eventPublisher;
+
+  private volatile RegistrySnapshot current;
+  private volatile boolean dirty = true;
+  private final NavigableMap<Long, Map<String, RegistryInstance>> history =
+      new ConcurrentSkipListMap<>();
+  private long nextVersion = System.currentTimeMillis();
+  private final Queue<RegistrySnapshotChangedEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean publishing = new AtomicBoolean();
+  private ScheduledFuture<?> refreshTask;
+
+  public RegistrySnapshotHolder(PeerAwareInstanceRegistry registry, ObjectMapper objectMapper,
+      TaskScheduler taskScheduler, RegistryProperties registryProperties,
+      ApplicationEventPublisher eventPublisher) {
+    this.registry = registry;
+    this.objectMapper = objectMapper;
+    this.taskScheduler = taskScheduler;
+    this.registryProperties = registryProperties;
+    this.eventPublisher = eventPublisher;
+  }
+
+  @PostConstruct
+  public void start() {
+    refreshTask = taskScheduler.scheduleWithFixedDelay(this::refresh,
+        registryProperties.getSnapshot().getRefreshInterval());
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (refreshTask != null) {
+      refreshTask.cancel(false);
+    }
+  }
+
+  /**
+   * @return the latest snapshot, rebuilt first only if the registry was flagged as changed
+   */
+  public RegistrySnapshot current() {
+    RegistrySnapshot snapshot = current;
+    if (snapshot == null || dirty) {
+      rebuild(true);
+      publishPendingEvents();
+      snapshot = current;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Compute the changes between the given version and a snapshot.
+   *
+   * @param snapshot the target snapshot, usually the {@link #current()} one
+   * @param since a version previously returned to the caller
+   * @return the delta, flagged as a reset when <code>since</code> is no longer in the history
+   */
+  public RegistryDelta delta(RegistrySnapshot snapshot, long since) {
+    Map<String, RegistryInstance> base = since == snapshot.getVersion() ? snapshot
+        .getInstancesByKey() : history.get(since);
+    if (base == null) {
+      return RegistryDelta.reset(since, snapshot);
+    }
+    return RegistryDelta.between(since, base, snapshot);
+  }
+
+  @EventListener
+  public void onInstanceRegistered(EurekaInstanceRegisteredEvent event) {
+    dirty = true;
+  }
+
+  @EventListener
+  public void onInstanceCanceled(EurekaInstanceCanceledEvent event) {
+    dirty = true;
+  }
+
+  @EventListener
+  public void onInstanceRenewed(EurekaInstanceRenewedEvent event) {
+    InstanceInfo info = event.getInstanceInfo();
+    RegistrySnapshot snapshot = current;
+    if (info == null || snapshot == null) {
+      return;
+    }
+    RegistryInstance known = snapshot.getInstance(event.getAppName(), event.getServerId());
+    if (known == null || !known.getStatus().equals(info.getStatus().name())) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Compare the registry with the current snapshot and publish a new version if it changed.
+   */
+  public void refresh() {
+    rebuild(false);
+    publishPendingEvents();
+  }
+
+  /**
+   * @param onlyIfDirty skip the comparison when the snapshot was rebuilt since it was flagged
+   */
+  private synchronized void rebuild(boolean onlyIfDirty) {
+    if (onlyIfDirty && current != null && !dirty) {
+      return;
+    }
+    String loggerPrefix = getLoggerPrefix("refresh");
+    try {
+      dirty = false;
+      RegistrySnapshot previous = current;
+      List<RegistryInstance> instances = new ArrayList<>();
+      for (Application app : registry.getApplications().getRegisteredApplications()) {
+        for (InstanceInfo info : app.getInstancesAsIsFromEureka()) {
+          RegistryInstance instance = new RegistryInstance(app.getName(), info);
+          // Unchanged instances are shared between versions to keep the history cheap
+          RegistryInstance known =
+              previous == null ? null : previous.getInstancesByKey().get(instance.getKey());
+          instances.add(instance.equals(known) ? known : instance);
+        }
+      }
+      instances.sort(RegistryInstance.ORDER);
+
+      if (previous != null && previous.getInstances().equals(instances)) {
+        return;
+      }
+
+      EurekaInfo eurekaVM = new EurekaInfo();
+      eurekaVM.setApplicationList(RegistrySnapshot.toApplications(instances));
+      byte[] payload = objectMapper.writeValueAsBytes(new ServiceResult(eurekaVM));
+
+      if (previous != null) {
+        history.put(previous.getVersion(), previous.getInstancesByKey());
+        while (history.size() > registryProperties.getSnapshot().getHistorySize()) {
+          history.pollFirstEntry();
+        }
+      }
+      current = new RegistrySnapshot(nextVersion++, System.currentTimeMillis(), instances,
+          payload, registryProperties.getSnapshot().getIndexedMetadataKeys());
+      logger().debug(loggerPrefix + "Registry snapshot {} built with {} instances",
+          current.getVersion(), instances.size());
+      pendingEvents.add(new RegistrySnapshotChangedEvent(this, previous, current));
+    } catch (JsonProcessingException e) {
+      dirty = true;
+      logger().error(loggerPrefix + "Unable to serialize registry snapshot", e);
+    } catch (RuntimeException e) {
+      dirty = true;
+      logger().error(loggerPrefix + "Unable to build registry snapshot", e);
+    }
+  }
+
+  /**
+   * Publish the events queued by the builds, in their order, unless another thread already does.
+   */
+  private void publishPendingEvents() {
+    while (!pendingEvents.isEmpty() && publishing.compareAndSet(false, true)) {
+      try {
+        RegistrySnapshotChangedEvent event;
+        while ((event = pendingEvents.poll()) != null) {
+          try {
+            eventPublisher.publishEvent(event);
+          } catch (RuntimeException e) {
+            // Neither the readers nor the scheduled refresh fail for a listener
+            logger().error(getLoggerPrefix("publishPendingEvents")
+                + "Registry snapshot listener failed for version {}",
+                event.getCurrent().getVersion(), e);
+          }
+        }
+      } finally {
+        publishing.set(false);
+      }
+    }
+  }
+}
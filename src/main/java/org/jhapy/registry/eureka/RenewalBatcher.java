@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.eureka;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Batching stage of the renewal fast path.
+ * <p>
+ * The lease of a client heartbeat is renewed on the request thread, which is all the client
+ * waits for. The heartbeat is then only counted here, per instance, and the pending instances
+ * are drained at a fixed interval: the heartbeat of each one is replicated to the peers and a
+ * single {@link CoalescedRenewalEvent} is published for the metrics and registry listeners.
+ * There is at most one pending entry per registered instance.
+ */
+public class RenewalBatcher implements MeterBinder, HasLogger {
+
+  private final RegistryProperties.Renewal properties;
+  private final Map<Key, Integer> pending = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService drainer;
+
+  private final LongAdder heartbeats = new LongAdder();
+  private final LongAdder batchCount = new LongAdder();
+  private final LongAdder batchNanos = new LongAdder();
+
+  private volatile RegistryInstanceRegistry registry;
+
+  public RenewalBatcher(RegistryProperties registryProperties) {
+    this.properties = registryProperties.getRenewal();
+    this.drainer = Executors
+        .newSingleThreadScheduledExecutor(new CustomizableThreadFactory("renewal-batch-"));
+  }
+
+  @PostConstruct
+  public void start() {
+    long interval = properties.getBatchInterval().toMillis();
+    drainer.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    drainer.shutdownNow();
+    drain();
+  }
+
+  /**
+   * Renew the lease of a client heartbeat and defer its replication and event to the next batch.
+   *
+   * @return <code>false</code> when the lease is unknown, the client has to register again
+   */
+  public boolean renew(RegistryInstanceRegistry registry, String appName, String id) {
+    if (!registry.renewLease(appName, id)) {
+      return false;
+    }
+    if (this.registry != registry) {
+      this.registry = registry;
+    }
+    heartbeats.increment();
+    pending.merge(new Key(appName, id), 1, Integer::sum);
+    return true;
+  }
+
+  /**
+   * Replicate and publish the heartbeats gathered since the last batch.
+   */
+  public void drain() {
+    RegistryInstanceRegistry current = registry;
+    if (current == null || pending.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    for (Key key : pending.keySet()) {
+      // A heartbeat recorded after the removal starts a new entry, for the next batch
+      Integer count = pending.remove(key);
+      if (count == null) {
+        continue;
+      }
+      try {
+        current.renewed(key.appName, key.id, count);
+      } catch (RuntimeException e) {
+        logger().warn(getLoggerPrefix("drain") + "Unable to complete the renewal of {}/{}: {}",
+            key.appName, key.id, e.getMessage());
+      }
+    }
+    batchCount.increment();
+    batchNanos.add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry meterRegistry) {
+    FunctionCounter.builder("registry.eureka.renews.batched", heartbeats, LongAdder::sum)
+        .description("Client heartbeats replicated and published by the renewal batches")
+        .register(meterRegistry);
+    FunctionTimer.builder("registry.eureka.renews.batches", this,
+        batcher -> batcher.batchCount.sum(), batcher -> batcher.batchNanos.sum(),
+        TimeUnit.NANOSECONDS).description("Renewal batches").register(meterRegistry);
+    Gauge.builder("registry.eureka.renews.pending", pending, Map::size)
+        .description("Instances waiting for the next renewal batch").register(meterRegistry);
+  }
+
+  private static class Key {
+
+    private final String appName;
+    private final String id;
+
+    private Key(String appName, String id) {
+      this.appName = appName;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key key = (Key) o;
+      return appName.equals(key.appName) && id.equals(key.id);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(appName, id);
+    }
+  }
+}
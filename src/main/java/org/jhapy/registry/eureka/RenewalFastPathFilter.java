@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.eureka.EurekaServerContext;
+import com.netflix.eureka.EurekaServerContextHolder;
+import com.netflix.eureka.cluster.PeerEurekaNode;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.jhapy.commons.security.AuthoritiesConstants;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.SecurityConfiguration;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.web.authentication.www.BasicAuthenticationEntryPoint;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriUtils;
+
+/**
+ * Answers the lease renewals of the Eureka clients before the security filter chain and Jersey.
+ * <p>
+ * Only the plain client heartbeat, <code>PUT /eureka/apps/{app}/{id}</code> with basic
+ * credentials of an administrator and without status override, is handled here: the credentials
+ * are checked by the authentication manager, whose password encoder remembers verified
+ * passwords, then the lease is renewed and the dirty timestamp compared as the Eureka instance
+ * resource does. The replication of the heartbeat and its event are left to a
+ * {@link RenewalBatcher}. A heartbeat with wrong credentials is answered with a 401, as the basic
+ * authentication of the chain would, so that they are checked only once. Any other request,
+ * including a heartbeat without credentials, goes through the regular chain.
+ */
+public class RenewalFastPathFilter extends OncePerRequestFilter implements MeterBinder,
+    HasLogger {
+
+  private static final String APPS_PATH = "/eureka/apps/";
+  private static final String BASIC = "basic ";
+
+  private final ObjectProvider<AuthenticationManager> authenticationManager;
+  private final RenewalBatcher renewalBatcher;
+  private final BasicAuthenticationEntryPoint authenticationEntryPoint =
+      new BasicAuthenticationEntryPoint();
+
+  private final LongAdder renewed = new LongAdder();
+  private final LongAdder notFound = new LongAdder();
+  private final LongAdder unauthorized = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+  private final LongAdder handledNanos = new LongAdder();
+
+  /**
+   * @param authenticationManager resolved on the first heartbeat, like the Eureka server context
+   */
+  public RenewalFastPathFilter(ObjectProvider<AuthenticationManager> authenticationManager,
+      RenewalBatcher renewalBatcher) {
+    this.authenticationManager = authenticationManager;
+    this.renewalBatcher = renewalBatcher;
+    this.authenticationEntryPoint.setRealmName(SecurityConfiguration.REALM_NAME);
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    long start = System.nanoTime();
+    EurekaServerContextHolder holder = EurekaServerContextHolder.getInstance();
+    String[] instance = holder == null ? null : renewedInstance(request);
+    Authentication authentication = null;
+    if (instance != null) {
+      try {
+        authentication = authenticate(request);
+      } catch (AuthenticationException e) {
+        unauthorized.increment();
+        authenticationEntryPoint.commence(request, response, e);
+        return;
+      }
+    }
+    Long lastDirtyTimestamp = null;
+    boolean handled = authentication != null && isAdministrator(authentication);
+    if (handled && request.getParameter("lastDirtyTimestamp") != null) {
+      try {
+        lastDirtyTimestamp = Long.valueOf(request.getParameter("lastDirtyTimestamp"));
+      } catch (NumberFormatException e) {
+        handled = false;
+      }
+    }
+    if (!handled) {
+      if (instance != null) {
+        fallbacks.increment();
+      }
+      filterChain.doFilter(request, response);
+      return;
+    }
+    if (renew(holder.getServerContext(), instance[0], instance[1], lastDirtyTimestamp)) {
+      renewed.increment();
+      response.setStatus(HttpServletResponse.SC_OK);
+    } else {
+      notFound.increment();
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    }
+    response.setContentLength(0);
+    handledNanos.add(System.nanoTime() - start);
+  }
+
+  /**
+   * @return the application and instance id of a plain client heartbeat, <code>null</code> for
+   * any other request
+   */
+  private String[] renewedInstance(HttpServletRequest request) {
+    if (!"PUT".equals(request.getMethod()) || request.getContentLengthLong() > 0
+        || "true".equals(request.getHeader(PeerEurekaNode.HEADER_REPLICATION))
+        || request.getParameter("overriddenstatus") != null) {
+      return null;
+    }
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (!path.startsWith(APPS_PATH)) {
+      return null;
+    }
+    int separator = path.indexOf('/', APPS_PATH.length());
+    if (separator <= APPS_PATH.length() || separator == path.length() - 1
+        || path.indexOf('/', separator + 1) >= 0) {
+      return null;
+    }
+    String appName = UriUtils.decode(path.substring(APPS_PATH.length(), separator),
+        StandardCharsets.UTF_8);
+    String id = UriUtils.decode(path.substring(separator + 1), StandardCharsets.UTF_8);
+    return new String[]{appName.toUpperCase(Locale.ROOT), id};
+  }
+
+  /**
+   * @return the authentication of the basic credentials of the request, <code>null</code> when
+   * there are none
+   * @throws AuthenticationException when the credentials are malformed or wrong
+   */
+  private Authentication authenticate(HttpServletRequest request) {
+    String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+    AuthenticationManager manager = authenticationManager.getIfUnique();
+    if (header == null || manager == null || !header.regionMatches(true, 0, BASIC, 0,
+        BASIC.length())) {
+      return null;
+    }
+    String credentials;
+    try {
+      credentials = new String(
+          Base64.getDecoder().decode(header.substring(BASIC.length()).trim()),
+          StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new BadCredentialsException("Failed to decode basic authentication token");
+    }
+    int colon = credentials.indexOf(':');
+    if (colon < 0) {
+      throw new BadCredentialsException("Invalid basic authentication token");
+    }
+    return manager.authenticate(new UsernamePasswordAuthenticationToken(
+        credentials.substring(0, colon), credentials.substring(colon + 1)));
+  }
+
+  private static boolean isAdministrator(Authentication authentication) {
+    for (GrantedAuthority authority : authentication.getAuthorities()) {
+      if (AuthoritiesConstants.ADMIN.equals(authority.getAuthority())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Same outcome as <code>InstanceResource.renewLease</code> for a client heartbeat.
+   */
+  private boolean renew(EurekaServerContext serverContext, String appName, String id,
+      Long lastDirtyTimestamp) {
+    PeerAwareInstanceRegistry registry = serverContext.getRegistry();
+    boolean renewed = registry instanceof RegistryInstanceRegistry ? renewalBatcher
+        .renew((RegistryInstanceRegistry) registry, appName, id)
+        : registry.renew(appName, id, false);
+    if (!renewed) {
+      logger().warn(getLoggerPrefix("renew") + "Not Found (Renew): {} - {}", appName, id);
+      return false;
+    }
+    if (lastDirtyTimestamp != null
+        && serverContext.getServerConfig().shouldSyncWhenTimestampDiffers()) {
+      InstanceInfo info = registry.getInstanceByAppAndId(appName, id, false);
+      // A newer client timestamp makes the client register again
+      return info == null || info.getLastDirtyTimestamp() == null
+          || lastDirtyTimestamp <= info.getLastDirtyTimestamp();
+    }
+    return true;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry meterRegistry) {
+    requestCounter(meterRegistry, "renewed", renewed);
+    requestCounter(meterRegistry, "not.found", notFound);
+    requestCounter(meterRegistry, "unauthorized", unauthorized);
+    requestCounter(meterRegistry, "fallback", fallbacks);
+    FunctionTimer.builder("registry.eureka.renews.fast.path", this,
+        filter -> filter.renewed.sum() + filter.notFound.sum(),
+        filter -> filter.handledNanos.sum(), TimeUnit.NANOSECONDS)
+        .description("Lease renewals answered by the fast path").register(meterRegistry);
+  }
+
+  private void requestCounter(MeterRegistry meterRegistry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.eureka.renews.fast.path.requests", counter, LongAdder::sum)
+        .tag("result", result).description("Client heartbeats seen by the renewal fast path")
+        .register(meterRegistry);
+  }
+}
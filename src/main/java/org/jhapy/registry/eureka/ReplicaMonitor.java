@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.eureka.cluster.PeerEurekaNode;
+import com.netflix.eureka.cluster.PeerEurekaNodes;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Health of the peer Eureka nodes, probed in the background.
+ * <p>
+ * Every <code>registry.replication.probe-interval</code>, all the peers are probed at once with
+ * an asynchronous request to their registry delta, served from their response cache, bounded by
+ * <code>registry.replication.probe-timeout</code>. A peer still answering a previous probe is
+ * skipped rather than probed twice. The results are kept per peer, with the URL parsed once, so
+ * that reading the replica view costs no request; the replication queue and batch outcomes come
+ * from {@link RegistryPeerEurekaNodes}.
+ */
+@Component
+public class ReplicaMonitor implements HasLogger {
+
+  private final PeerEurekaNodes peerEurekaNodes;
+  private final TaskScheduler taskScheduler;
+  private final RegistryProperties.Replication properties;
+  private final HttpClient httpClient;
+  private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+  /**
+   * Peer URLs that could not be parsed, reported once rather than on every probe.
+   */
+  private final Set<String> unparsable = ConcurrentHashMap.newKeySet();
+  private ScheduledFuture<?> probeTask;
+
+  public ReplicaMonitor(PeerEurekaNodes peerEurekaNodes, TaskScheduler taskScheduler,
+      RegistryProperties registryProperties) {
+    this.peerEurekaNodes = peerEurekaNodes;
+    this.taskScheduler = taskScheduler;
+    this.properties = registryProperties.getReplication();
+    this.httpClient = HttpClient.newBuilder().connectTimeout(properties.getProbeTimeout())
+        .build();
+  }
+
+  @PostConstruct
+  public void start() {
+    probeTask = taskScheduler.scheduleWithFixedDelay(this::probe, properties.getProbeInterval());
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (probeTask != null) {
+      probeTask.cancel(false);
+    }
+  }
+
+  /**
+   * @return the <code>host:port</code> of the current peers
+   */
+  public List<String> getAddresses() {
+    List<String> addresses = new ArrayList<>();
+    for (PeerEurekaNode node : peerEurekaNodes.getPeerNodesView()) {
+      Replica replica = replica(node.getServiceUrl());
+      if (replica != null) {
+        addresses.add(replica.address);
+      }
+    }
+    return addresses;
+  }
+
+  /**
+   * @return the health of the current peers, as of their last probe
+   */
+  public List<ReplicaStatus> getReplicas() {
+    List<ReplicaStatus> statuses = new ArrayList<>();
+    for (PeerEurekaNode node : peerEurekaNodes.getPeerNodesView()) {
+      Replica replica = replica(node.getServiceUrl());
+      if (replica != null) {
+        statuses.add(replica.toStatus(replicationClient(node.getServiceUrl())));
+      }
+    }
+    return statuses;
+  }
+
+  /**
+   * Start a probe of every current peer, without waiting for the answers.
+   */
+  public void probe() {
+    Set<String> serviceUrls = new HashSet<>();
+    for (PeerEurekaNode node : peerEurekaNodes.getPeerNodesView()) {
+      serviceUrls.add(node.getServiceUrl());
+      Replica replica = replica(node.getServiceUrl());
+      if (replica != null) {
+        probe(replica);
+      }
+    }
+    replicas.keySet().retainAll(serviceUrls);
+    unparsable.retainAll(serviceUrls);
+  }
+
+  private void probe(Replica replica) {
+    if (!replica.probing.compareAndSet(false, true)) {
+      return;
+    }
+    HttpRequest.Builder request = HttpRequest.newBuilder(replica.probeUri)
+        .timeout(properties.getProbeTimeout())
+        .header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE).GET();
+    if (replica.authorization != null) {
+      request.header(HttpHeaders.AUTHORIZATION, replica.authorization);
+    }
+    long start = System.nanoTime();
+    try {
+      httpClient.sendAsync(request.build(), BodyHandlers.discarding())
+          .whenComplete((response, error) -> replica.probed(response, error, start));
+    } catch (RuntimeException e) {
+      replica.probed(null, e, start);
+    }
+  }
+
+  private InstrumentedReplicationClient replicationClient(String serviceUrl) {
+    return peerEurekaNodes instanceof RegistryPeerEurekaNodes
+        ? ((RegistryPeerEurekaNodes) peerEurekaNodes).getReplicationClient(serviceUrl) : null;
+  }
+
+  private Replica replica(String serviceUrl) {
+    return unparsable.contains(serviceUrl) ? null
+        : replicas.computeIfAbsent(serviceUrl, this::parse);
+  }
+
+  private Replica parse(String serviceUrl) {
+    try {
+      return new Replica(serviceUrl);
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      unparsable.add(serviceUrl);
+      logger().warn(getLoggerPrefix("parse") + "Could not parse peer Eureka node URL: {}",
+          e.getMessage());
+      return null;
+    }
+  }
+
+  private static final class Replica {
+
+    private final String address;
+    private final URI probeUri;
+    private final String authorization;
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final LongAdder probeFailures = new LongAdder();
+
+    private volatile long latencyNanos = -1;
+    private volatile long lastProbe;
+    private volatile long lastSuccessfulProbe;
+    private volatile int consecutiveFailures;
+    private volatile String lastError;
+
+    Replica(String serviceUrl) throws URISyntaxException {
+      URI uri = new URI(serviceUrl);
+      // Login and password are sent as a header, and never shown
+      this.address = uri.getHost() + ":" + uri.getPort();
+      String path = uri.getPath() == null ? "/" : uri.getPath();
+      this.probeUri = new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(),
+          (path.endsWith("/") ? path : path + "/") + "apps/delta", null, null);
+      this.authorization = uri.getUserInfo() == null ? null : "Basic " + Base64.getEncoder()
+          .encodeToString(uri.getUserInfo().getBytes(StandardCharsets.UTF_8));
+    }
+
+    void probed(HttpResponse<Void> response, Throwable error, long start) {
+      long elapsed = System.nanoTime() - start;
+      long now = System.currentTimeMillis();
+      if (error == null && response.statusCode() >= 200 && response.statusCode() < 300) {
+        latencyNanos = elapsed;
+        lastSuccessfulProbe = now;
+        consecutiveFailures = 0;
+        lastError = null;
+      } else {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+            ? error.getCause() : error;
+        lastError = cause == null ? "HTTP " + response.statusCode() : cause.toString();
+        probeFailures.increment();
+        consecutiveFailures++;
+      }
+      lastProbe = now;
+      probing.set(false);
+    }
+
+    ReplicaStatus toStatus(InstrumentedReplicationClient replicationClient) {
+      long probedAt = lastProbe;
+      String status = probedAt == 0 ? "UNKNOWN" : consecutiveFailures == 0 ? "UP" : "DOWN";
+      long latency = latencyNanos;
+      long successAt = lastSuccessfulProbe;
+      Long replicationQueue = null;
+      Long lastReplication = null;
+      Long replicationFailures = null;
+      if (replicationClient != null) {
+        long queueSize = replicationClient.getQueueSize();
+        long lastSuccess = replicationClient.getLastSuccess();
+        replicationQueue = queueSize < 0 ? null : queueSize;
+        lastReplication = lastSuccess == 0 ? null : lastSuccess;
+        replicationFailures = replicationClient.getFailureCount();
+      }
+      return new ReplicaStatus(address, status, latency < 0 ? null : latency / 1_000_000d,
+          probedAt == 0 ? null : probedAt, successAt == 0 ? null : successAt,
+          consecutiveFailures, probeFailures.sum(), lastError, replicationQueue, lastReplication,
+          replicationFailures);
+    }
+  }
+}
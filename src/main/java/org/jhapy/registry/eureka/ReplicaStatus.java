@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+/**
+ * Health of a peer Eureka node, as seen from this node: the result of the last probes and the
+ * state of the replication towards it.
+ */
+public final class ReplicaStatus {
+
+  private final String address;
+  private final String status;
+  private final Double latency;
+  private final Long lastProbe;
+  private final Long lastSuccessfulProbe;
+  private final int consecutiveFailures;
+  private final long probeFailures;
+  private final String lastError;
+  private final Long replicationQueue;
+  private final Long lastReplication;
+  private final Long replicationFailures;
+
+  ReplicaStatus(String address, String status, Double latency, Long lastProbe,
+      Long lastSuccessfulProbe, int consecutiveFailures, long probeFailures, String lastError,
+      Long replicationQueue, Long lastReplication, Long replicationFailures) {
+    this.address = address;
+    this.status = status;
+    this.latency = latency;
+    this.lastProbe = lastProbe;
+    this.lastSuccessfulProbe = lastSuccessfulProbe;
+    this.consecutiveFailures = consecutiveFailures;
+    this.probeFailures = probeFailures;
+    this.lastError = lastError;
+    this.replicationQueue = replicationQueue;
+    this.lastReplication = lastReplication;
+    this.replicationFailures = replicationFailures;
+  }
+
+  /**
+   * @return the <code>host:port</code> of the peer, without the credentials of its URL
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * @return <code>UP</code> if the last probe succeeded, <code>DOWN</code> if it failed,
+   * <code>UNKNOWN</code> before the first probe
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the round-trip time of the last successful probe, in milliseconds
+   */
+  public Double getLatency() {
+    return latency;
+  }
+
+  /**
+   * @return the epoch millis of the last probe
+   */
+  public Long getLastProbe() {
+    return lastProbe;
+  }
+
+  public Long getLastSuccessfulProbe() {
+    return lastSuccessfulProbe;
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public long getProbeFailures() {
+    return probeFailures;
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  /**
+   * @return the replication tasks waiting to be sent to the peer
+   */
+  public Long getReplicationQueue() {
+    return replicationQueue;
+  }
+
+  /**
+   * @return the epoch millis of the last replication batch accepted by the peer
+   */
+  public Long getLastReplication() {
+    return lastReplication;
+  }
+
+  /**
+   * @return the replication batches the peer failed to accept
+   */
+  public Long getReplicationFailures() {
+    return replicationFailures;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.sun.jersey.api.client.AbstractClientRequestAdapter;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientRequestAdapter;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Compresses with gzip the replication batches sent to a peer.
+ * <p>
+ * Batches are only compressed once the peer has announced, in the response to a previous
+ * replication request, that its {@link ReplicationDecompressionFilter} accepts them: the first
+ * batch, and every batch sent to a peer running an older version, is sent plain.
+ */
+class ReplicationCompressionFilter extends ClientFilter {
+
+  private static final String REPLICATION_PATH = "/peerreplication/";
+
+  private volatile boolean peerAcceptsGzip;
+
+  @Override
+  public ClientResponse handle(ClientRequest request) throws ClientHandlerException {
+    boolean replication = request.getURI().getPath().contains(REPLICATION_PATH);
+    if (replication && peerAcceptsGzip && request.getEntity() != null && !request.getHeaders()
+        .containsKey(HttpHeaders.CONTENT_ENCODING)) {
+      request.getHeaders().add(HttpHeaders.CONTENT_ENCODING, ReplicationDecompressionFilter.GZIP);
+      request.setAdapter(new GzipAdapter(request.getAdapter()));
+    }
+    ClientResponse response = getNext().handle(request);
+    if (replication) {
+      peerAcceptsGzip = ReplicationDecompressionFilter.GZIP.equalsIgnoreCase(response.getHeaders()
+          .getFirst(ReplicationDecompressionFilter.ACCEPT_ENCODING_HEADER));
+    }
+    return response;
+  }
+
+  private static class GzipAdapter extends AbstractClientRequestAdapter {
+
+    GzipAdapter(ClientRequestAdapter adapter) {
+      super(adapter);
+    }
+
+    @Override
+    public OutputStream adapt(ClientRequest request, OutputStream out) throws IOException {
+      return new GZIPOutputStream(getAdapter().adapt(request, out));
+    }
+  }
+}
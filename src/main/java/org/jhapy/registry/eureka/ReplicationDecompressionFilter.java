@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.jhapy.commons.utils.HasLogger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Accepts gzip compressed peer replication batches, sent by {@link ReplicationCompressionFilter}.
+ * <p>
+ * The Eureka Jersey resources only read plain bodies: the request is decompressed before it
+ * reaches them. Every replication response announces that this node accepts compressed batches,
+ * so that peers running an older version keep receiving plain ones.
+ * <p>
+ * The decompressed body is bounded: past the configured size, the request is answered with 413
+ * (Payload Too Large) and the read fails, instead of inflating the whole body in memory.
+ */
+public class ReplicationDecompressionFilter extends OncePerRequestFilter implements HasLogger {
+
+  /**
+   * Response header listing the encodings accepted for replication batches.
+   */
+  static final String ACCEPT_ENCODING_HEADER = "X-Registry-Replication-Accept-Encoding";
+
+  static final String GZIP = "gzip";
+
+  private final long maxDecompressedSize;
+
+  public ReplicationDecompressionFilter(long maxDecompressedSize) {
+    this.maxDecompressedSize = maxDecompressedSize;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    response.setHeader(ACCEPT_ENCODING_HEADER, GZIP);
+    if (GZIP.equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING))) {
+      request = new DecompressedRequest(request, response);
+    }
+    filterChain.doFilter(request, response);
+  }
+
+  /**
+   * The encoding and length headers describe the compressed body, not the one read.
+   */
+  private static boolean isHidden(String name) {
+    return HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name)
+        || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+  }
+
+  private class DecompressedRequest extends HttpServletRequestWrapper {
+
+    private final HttpServletResponse response;
+    private ServletInputStream inputStream;
+    private BufferedReader reader;
+
+    DecompressedRequest(HttpServletRequest request, HttpServletResponse response) {
+      super(request);
+      this.response = response;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+      if (inputStream == null) {
+        inputStream = new GzipServletInputStream(super.getInputStream(), this, response);
+      }
+      return inputStream;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+      if (reader == null) {
+        String encoding = getCharacterEncoding();
+        Charset charset =
+            encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding);
+        reader = new BufferedReader(new InputStreamReader(getInputStream(), charset));
+      }
+      return reader;
+    }
+
+    @Override
+    public int getContentLength() {
+      return -1;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return -1;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return isHidden(name) ? null : super.getHeader(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+      return isHidden(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      List<String> names = Collections.list(super.getHeaderNames());
+      names.removeIf(ReplicationDecompressionFilter::isHidden);
+      return Collections.enumeration(names);
+    }
+  }
+
+  private class GzipServletInputStream extends ServletInputStream {
+
+    private final ServletInputStream compressed;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private GZIPInputStream gzip;
+    private long decompressedSize;
+    private boolean finished;
+
+    GzipServletInputStream(ServletInputStream compressed, HttpServletRequest request,
+        HttpServletResponse response) {
+      this.compressed = compressed;
+      this.request = request;
+      this.response = response;
+    }
+
+    private GZIPInputStream gzip() throws IOException {
+      // Opened lazily: the constructor of GZIPInputStream reads the header from the socket
+      if (gzip == null) {
+        gzip = new GZIPInputStream(compressed);
+      }
+      return gzip;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = gzip().read();
+      finished = b < 0;
+      if (!finished) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      // Never inflates more than one byte past the limit
+      int read = gzip().read(b, off,
+          (int) Math.min(len, Math.max(1, maxDecompressedSize - decompressedSize + 1)));
+      finished = read < 0;
+      if (!finished) {
+        count(read);
+      }
+      return read;
+    }
+
+    private void count(int read) throws IOException {
+      decompressedSize += read;
+      if (decompressedSize > maxDecompressedSize) {
+        String message =
+            "Replication batch larger than " + maxDecompressedSize + " bytes once decompressed";
+        logger().warn(getLoggerPrefix("read") + "{} from {}", message, request.getRemoteAddr());
+        // Sent before failing the read: the response is then committed, and the error the
+        // Jersey resource answers for the unreadable body is discarded
+        if (!response.isCommitted()) {
+          response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message);
+        }
+        throw new IOException(message);
+      }
+    }
+
+    @Override
+    public boolean isFinished() {
+      return finished;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      // The Eureka resources read the body synchronously
+      throw new IllegalStateException("Non-blocking reads of a compressed replication batch are"
+          + " not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (gzip != null) {
+        gzip.close();
+      } else {
+        compressed.close();
+      }
+    }
+  }
+}
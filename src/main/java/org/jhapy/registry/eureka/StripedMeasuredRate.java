@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jhapy.registry.eureka;
+
+import com.netflix.eureka.util.MeasuredRate;
+import java.lang.reflect.Field;
+import java.util.Timer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * {@link MeasuredRate} counting in a {@link LongAdder} instead of a single atomic counter, which
+ * all the request threads renewing a lease contend on.
+ * <p>
+ * The buckets are rolled by the first caller past the end of the sample interval rather than by
+ * a timer: the count of the last interval is <code>0</code> when no increment happened during it,
+ * as with the Eureka implementation. The adder is never swapped, an interval counts the
+ * difference between two rolls: an increment racing with a roll is counted in the next interval
+ * instead of being lost.
+ */
+class StripedMeasuredRate extends MeasuredRate {
+
+  private final long sampleInterval;
+  private final AtomicLong bucketEnd = new AtomicLong(Long.MAX_VALUE);
+  private final LongAdder count = new LongAdder();
+  private volatile long countAtRoll;
+  private volatile long lastBucket;
+
+  StripedMeasuredRate(long sampleInterval) {
+    super(sampleInterval);
+    this.sampleInterval = sampleInterval;
+    // Started by the Eureka constructor, never used by this implementation
+    cancelTimer(this);
+  }
+
+  /**
+   * Stop the timer thread a {@link MeasuredRate} starts when created, even if it was never
+   * started itself.
+   */
+  static void cancelTimer(MeasuredRate measuredRate) {
+    Field field = ReflectionUtils.findField(MeasuredRate.class, "timer", Timer.class);
+    if (field != null) {
+      ReflectionUtils.makeAccessible(field);
+      Timer timer = (Timer) ReflectionUtils.getField(field, measuredRate);
+      if (timer != null) {
+        timer.cancel();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void start() {
+    if (bucketEnd.get() == Long.MAX_VALUE) {
+      countAtRoll = count.sum();
+      bucketEnd.set(System.currentTimeMillis() + sampleInterval);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    bucketEnd.set(Long.MAX_VALUE);
+  }
+
+  @Override
+  public long getCount() {
+    roll();
+    return lastBucket;
+  }
+
+  @Override
+  public void increment() {
+    roll();
+    count.increment();
+  }
+
+  private void roll() {
+    long end = bucketEnd.get();
+    long now = System.currentTimeMillis();
+    if (now < end) {
+      return;
+    }
+    long elapsedIntervals = (now - end) / sampleInterval;
+    if (bucketEnd.compareAndSet(end, end + (elapsedIntervals + 1) * sampleInterval)) {
+      long total = count.sum();
+      long finished = total - countAtRoll;
+      countAtRoll = total;
+      // More than one interval without any call: the last one counted nothing
+      lastBucket = elapsedIntervals == 0 ? finished : 0;
+    }
+  }
+}
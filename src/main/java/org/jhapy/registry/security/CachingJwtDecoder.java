@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.security;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+
+/**
+ * Bearer token decoder keeping the tokens it verified, keyed by a SHA-256 hash of the token.
+ * <p>
+ * A token is served from the cache until it expires, and at most for the configured time to
+ * live, so a repeated request skips the parsing, the signature verification and the claims
+ * validation. Rejected tokens are not cached.
+ */
+public class CachingJwtDecoder implements JwtDecoder, MeterBinder {
+
+  private final JwtDecoder delegate;
+  private final RegistryProperties.JwtCache properties;
+  private final Map<DigestKey, Entry> entries = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder successCount = new LongAdder();
+  private final LongAdder successNanos = new LongAdder();
+  private final LongAdder failureCount = new LongAdder();
+  private final LongAdder failureNanos = new LongAdder();
+
+  public CachingJwtDecoder(JwtDecoder delegate, RegistryProperties registryProperties) {
+    this.delegate = delegate;
+    this.properties = registryProperties.getSecurity().getJwtCache();
+  }
+
+  @Override
+  public Jwt decode(String token) throws JwtException {
+    if (!properties.isEnabled()) {
+      return verify(token);
+    }
+    DigestKey key = key(token);
+    long now = System.currentTimeMillis();
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      if (now < entry.expiresAt) {
+        hits.increment();
+        return entry.jwt;
+      }
+      entries.remove(key, entry);
+    }
+    misses.increment();
+    Jwt jwt = verify(token);
+    long expiresAt = now + properties.getTimeToLive().toMillis();
+    Instant exp = jwt.getExpiresAt();
+    if (exp != null) {
+      expiresAt = Math.min(expiresAt, exp.toEpochMilli());
+    }
+    if (now < expiresAt) {
+      entries.put(key, new Entry(jwt, expiresAt));
+      evictOverflow(now);
+    }
+    return jwt;
+  }
+
+  private Jwt verify(String token) {
+    long start = System.nanoTime();
+    try {
+      Jwt jwt = delegate.decode(token);
+      successCount.increment();
+      successNanos.add(System.nanoTime() - start);
+      return jwt;
+    } catch (RuntimeException e) {
+      failureCount.increment();
+      failureNanos.add(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  private void evictOverflow(long now) {
+    if (entries.size() <= properties.getMaxEntries()) {
+      return;
+    }
+    entries.values().removeIf(entry -> entry.expiresAt <= now);
+    while (entries.size() > properties.getMaxEntries()) {
+      entries.entrySet().stream()
+          .min((a, b) -> Long.compare(a.getValue().expiresAt, b.getValue().expiresAt))
+          .ifPresent(first -> entries.remove(first.getKey(), first.getValue()));
+    }
+  }
+
+  private static DigestKey key(String token) {
+    try {
+      return new DigestKey(MessageDigest.getInstance("SHA-256")
+          .digest(token.getBytes(StandardCharsets.US_ASCII)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Drop every cached token, for instance once a signing key is revoked.
+   */
+  public void invalidate() {
+    entries.clear();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    requestCounter(registry, "hit", hits);
+    requestCounter(registry, "miss", misses);
+    verificationTimer(registry, "success", successCount, successNanos);
+    verificationTimer(registry, "failure", failureCount, failureNanos);
+    Gauge.builder("registry.security.jwt.cache.size", entries, Map::size)
+        .description("Verified bearer tokens in the cache").register(registry);
+  }
+
+  private void requestCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.security.jwt.cache.requests", counter, LongAdder::sum)
+        .tag("result", result).description("Bearer token decodings by cache outcome")
+        .register(registry);
+  }
+
+  private void verificationTimer(MeterRegistry registry, String outcome, LongAdder count,
+      LongAdder nanos) {
+    FunctionTimer.builder("registry.security.jwt.verifications", this, decoder -> count.sum(),
+        decoder -> nanos.sum(), TimeUnit.NANOSECONDS).tag("outcome", outcome)
+        .description("Bearer token parsing, signature verification and validation")
+        .register(registry);
+  }
+
+  private static class Entry {
+
+    private final Jwt jwt;
+    private final long expiresAt;
+
+    private Entry(Jwt jwt, long expiresAt) {
+      this.jwt = jwt;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
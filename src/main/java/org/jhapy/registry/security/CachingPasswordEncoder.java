@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.security;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+/**
+ * Password encoder remembering, for a short time, the passwords it verified.
+ * <p>
+ * The Eureka clients and the metrics scrapers send the same basic credentials with every
+ * request, and each BCrypt comparison costs tens of milliseconds. A successful comparison is
+ * recorded as an HMAC, with a key drawn at startup, of the presented password and of the stored
+ * hash: neither the password nor anything an attacker could brute force offline is kept, a
+ * changed password has a new hash and never matches an old entry, and a wrong password always
+ * goes through the delegate.
+ */
+public class CachingPasswordEncoder implements PasswordEncoder, MeterBinder {
+
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final PasswordEncoder delegate;
+  private final RegistryProperties.CredentialCache properties;
+  private final Map<DigestKey, Long> verified = new ConcurrentHashMap<>();
+  private final ThreadLocal<Mac> mac;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder matchCount = new LongAdder();
+  private final LongAdder matchNanos = new LongAdder();
+
+  public CachingPasswordEncoder(PasswordEncoder delegate, RegistryProperties registryProperties) {
+    this.delegate = delegate;
+    this.properties = registryProperties.getSecurity().getCredentialCache();
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    SecretKeySpec secretKey = new SecretKeySpec(key, ALGORITHM);
+    this.mac = ThreadLocal.withInitial(() -> {
+      try {
+        Mac instance = Mac.getInstance(ALGORITHM);
+        instance.init(secretKey);
+        return instance;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(ALGORITHM + " is not available", e);
+      }
+    });
+  }
+
+  @Override
+  public String encode(CharSequence rawPassword) {
+    return delegate.encode(rawPassword);
+  }
+
+  @Override
+  public boolean matches(CharSequence rawPassword, String encodedPassword) {
+    if (!properties.isEnabled() || rawPassword == null || encodedPassword == null) {
+      return match(rawPassword, encodedPassword);
+    }
+    DigestKey key = key(rawPassword, encodedPassword);
+    long now = System.nanoTime();
+    Long verifiedAt = verified.get(key);
+    if (verifiedAt != null && now - verifiedAt < properties.getTimeToLive().toNanos()) {
+      hits.increment();
+      return true;
+    }
+    misses.increment();
+    if (!match(rawPassword, encodedPassword)) {
+      verified.remove(key);
+      return false;
+    }
+    verified.put(key, now);
+    evictOverflow();
+    return true;
+  }
+
+  @Override
+  public boolean upgradeEncoding(String encodedPassword) {
+    return delegate.upgradeEncoding(encodedPassword);
+  }
+
+  private boolean match(CharSequence rawPassword, String encodedPassword) {
+    long start = System.nanoTime();
+    try {
+      return delegate.matches(rawPassword, encodedPassword);
+    } finally {
+      matchCount.increment();
+      matchNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  private DigestKey key(CharSequence rawPassword, String encodedPassword) {
+    Mac instance = mac.get();
+    instance.update(encodedPassword.getBytes(StandardCharsets.UTF_8));
+    instance.update((byte) 0);
+    return new DigestKey(
+        instance.doFinal(rawPassword.toString().getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private void evictOverflow() {
+    if (verified.size() <= properties.getMaxEntries()) {
+      return;
+    }
+    long now = System.nanoTime();
+    long timeToLive = properties.getTimeToLive().toNanos();
+    verified.values().removeIf(verifiedAt -> now - verifiedAt >= timeToLive);
+    while (verified.size() > properties.getMaxEntries()) {
+      verified.entrySet().stream().min(Map.Entry.comparingByValue())
+          .ifPresent(oldest -> verified.remove(oldest.getKey(), oldest.getValue()));
+    }
+  }
+
+  /**
+   * Forget every verified password, the next requests go through the delegate again.
+   */
+  public void invalidate() {
+    verified.clear();
+  }
+
+  @EventListener
+  public void onEnvironmentChange(EnvironmentChangeEvent event) {
+    invalidate();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    requestCounter(registry, "hit", hits);
+    requestCounter(registry, "miss", misses);
+    FunctionTimer.builder("registry.security.credentials.verifications", this,
+        encoder -> encoder.matchCount.sum(), encoder -> encoder.matchNanos.sum(),
+        TimeUnit.NANOSECONDS).description("Password comparisons run by the password encoder")
+        .register(registry);
+    Gauge.builder("registry.security.credentials.cache.size", verified, Map::size)
+        .description("Verified passwords in the cache").register(registry);
+  }
+
+  private void requestCounter(MeterRegistry registry, String result, LongAdder counter) {
+    FunctionCounter.builder("registry.security.credentials.cache.requests", counter,
+        LongAdder::sum).tag("result", result)
+        .description("Password verifications by cache outcome").register(registry);
+  }
+}
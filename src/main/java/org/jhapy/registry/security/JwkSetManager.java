@@ -0,0 +1,302 @@
+/*
+ * Copyright 2020-2020 the original author or authors from the JHapy project.
+ *
+ * This file is part of the JHapy project, see https://www.jhapy.org/ for more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jhapy.registry.security;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.jhapy.commons.utils.HasLogger;
+import org.jhapy.registry.config.RegistryProperties;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Signing keys of the OIDC issuer, loaded off the startup and request threads.
+ * <p>
+ * The discovery document and the key set are loaded in the background once the context is up,
+ * then reloaded on a fixed delay, sooner when the key set response sets a shorter
+ * <code>max-age</code>. The loads run on a thread of their own, the shared task scheduler only
+ * triggers them. Token verification only reads the in-memory key set: when the issuer
+ * cannot be reached, the last known keys keep being used and the load is retried. A key id
+ * missing from the set triggers a rate-limited reload, the token itself is rejected. Until the
+ * first load succeeds, every bearer token is rejected; basic authentication is not affected.
+ */
+public class JwkSetManager implements JWKSource<SecurityContext>, MeterBinder, HasLogger {
+
+  private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+  private final String issuerUri;
+  private final TaskScheduler taskScheduler;
+  private final ExecutorService loader;
+  private final RegistryProperties.Jwks properties;
+  private final RestTemplate restTemplate;
+  private final List<Runnable> keysRemovedListeners = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean reloadRequested = new AtomicBoolean();
+
+  private volatile JWKSet jwkSet;
+  private volatile String jwkSetUri;
+  private volatile long lastLoad;
+  private volatile long lastAttempt;
+  private volatile boolean running;
+  private ScheduledFuture<?> loadTask;
+  private Timer successes;
+  private Timer failures;
+
+  public JwkSetManager(String issuerUri, TaskScheduler taskScheduler,
+      RegistryProperties registryProperties) {
+    this.issuerUri = issuerUri;
+    this.taskScheduler = taskScheduler;
+    // The issuer calls block for up to the connect and read timeouts, plus the DNS resolution:
+    // not on the shared scheduler thread, only used for the timing
+    this.loader = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("jwks-load-"));
+    this.properties = registryProperties.getSecurity().getJwks();
+    SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+    requestFactory.setConnectTimeout((int) properties.getTimeout().toMillis());
+    requestFactory.setReadTimeout((int) properties.getTimeout().toMillis());
+    this.restTemplate = new RestTemplate(requestFactory);
+  }
+
+  @PostConstruct
+  public void start() {
+    running = true;
+    schedule(Duration.ZERO);
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    running = false;
+    if (loadTask != null) {
+      loadTask.cancel(false);
+    }
+    loader.shutdownNow();
+  }
+
+  private synchronized void schedule(Duration delay) {
+    if (running) {
+      loadTask = taskScheduler.schedule(() -> submit(this::scheduledLoad),
+          Instant.now().plus(delay));
+    }
+  }
+
+  private boolean submit(Runnable task) {
+    try {
+      loader.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      // Stopped
+      return false;
+    }
+  }
+
+  private void scheduledLoad() {
+    // Rescheduled whatever happens: this task is the only one loading the keys periodically
+    Duration next = properties.getRetryInterval();
+    try {
+      next = load();
+    } finally {
+      schedule(next);
+    }
+  }
+
+  /**
+   * Build a decoder verifying the RS256 signatures with the keys of this manager, the claims are
+   * left to the Spring Security validators as with <code>JwtDecoders</code>.
+   */
+  public NimbusJwtDecoder createDecoder() {
+    DefaultJWTProcessor<SecurityContext> jwtProcessor = new DefaultJWTProcessor<>();
+    jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(JWSAlgorithm.RS256, this));
+    jwtProcessor.setJWTClaimsSetVerifier((claims, context) -> {
+    });
+    return new NimbusJwtDecoder(jwtProcessor);
+  }
+
+  /**
+   * @param listener called when a reload no longer has some of the previous keys
+   */
+  public void addKeysRemovedListener(Runnable listener) {
+    keysRemovedListeners.add(listener);
+  }
+
+  @Override
+  public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) {
+    JWKSet keys = jwkSet;
+    List<JWK> selected = keys == null ? Collections.emptyList() : jwkSelector.select(keys);
+    if (selected.isEmpty()) {
+      requestReload();
+    }
+    return selected;
+  }
+
+  private void requestReload() {
+    if (System.currentTimeMillis() - lastAttempt < properties.getRetryInterval().toMillis()
+        || !reloadRequested.compareAndSet(false, true)) {
+      return;
+    }
+    if (!submit(() -> {
+      try {
+        load();
+      } finally {
+        reloadRequested.set(false);
+      }
+    })) {
+      reloadRequested.set(false);
+    }
+  }
+
+  /**
+   * @return the delay before the next scheduled load
+   */
+  synchronized Duration load() {
+    String loggerPrefix = getLoggerPrefix("load");
+    long start = System.nanoTime();
+    lastAttempt = System.currentTimeMillis();
+    try {
+      if (jwkSetUri == null) {
+        jwkSetUri = discoverJwkSetUri();
+      }
+      ResponseEntity<String> response = restTemplate.getForEntity(jwkSetUri, String.class);
+      if (response.getBody() == null) {
+        throw new IllegalStateException(jwkSetUri + " returned no key set");
+      }
+      JWKSet loaded = JWKSet.parse(response.getBody());
+      JWKSet previous = jwkSet;
+      jwkSet = loaded;
+      lastLoad = System.currentTimeMillis();
+      record(successes, start);
+      if (previous != null && !keyIds(loaded).containsAll(keyIds(previous))) {
+        logger().info(loggerPrefix + "Signing keys removed by {}", issuerUri);
+        keysRemovedListeners.forEach(Runnable::run);
+      }
+      logger().debug(loggerPrefix + "{} signing keys loaded from {}", loaded.getKeys().size(),
+          jwkSetUri);
+      return nextLoad(response.getHeaders());
+    } catch (ParseException | RuntimeException e) {
+      // Any failure, not only the expected ones, must not stop the scheduled loads
+      record(failures, start);
+      logger().warn(loggerPrefix + "Unable to load the signing keys of {}, {}: {}", issuerUri,
+          jwkSet == null ? "no key known yet" : "keeping the last known keys", e.getMessage());
+      return properties.getRetryInterval();
+    }
+  }
+
+  private String discoverJwkSetUri() {
+    String discoveryUri = UriComponentsBuilder.fromUriString(issuerUri)
+        .path("/.well-known/openid-configuration").toUriString();
+    Map<String, Object> configuration = restTemplate
+        .exchange(discoveryUri, HttpMethod.GET, null,
+            new ParameterizedTypeReference<Map<String, Object>>() {
+            }).getBody();
+    if (configuration == null || !issuerUri.equals(configuration.get("issuer"))) {
+      throw new IllegalStateException("The issuer of " + discoveryUri + " does not match "
+          + issuerUri);
+    }
+    Object uri = configuration.get("jwks_uri");
+    if (uri == null) {
+      throw new IllegalStateException(discoveryUri + " has no jwks_uri");
+    }
+    // Not kept when invalid: the discovery is retried with the next load
+    if (!UriComponentsBuilder.fromUriString(uri.toString()).build().toUri().isAbsolute()) {
+      throw new IllegalStateException(discoveryUri + " has a relative jwks_uri: " + uri);
+    }
+    return uri.toString();
+  }
+
+  private Duration nextLoad(HttpHeaders headers) {
+    Duration next = properties.getRefreshInterval();
+    String cacheControl = headers.getCacheControl();
+    Matcher maxAge = cacheControl == null ? null : MAX_AGE.matcher(cacheControl);
+    if (maxAge != null && maxAge.find()) {
+      // Reload a bit before the key set goes stale, never faster than the retries
+      Duration fresh = Duration.ofSeconds(Long.parseLong(maxAge.group(1)) * 4 / 5);
+      if (fresh.compareTo(next) < 0) {
+        next = fresh.compareTo(properties.getRetryInterval()) > 0 ? fresh
+            : properties.getRetryInterval();
+      }
+    }
+    return next;
+  }
+
+  private static Set<String> keyIds(JWKSet keys) {
+    return keys.getKeys().stream().map(JWK::getKeyID).filter(Objects::nonNull)
+        .collect(Collectors.toSet());
+  }
+
+  private static void record(Timer timer, long start) {
+    if (timer != null) {
+      timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    successes = loadTimer(registry, "success");
+    failures = loadTimer(registry, "failure");
+    Gauge.builder("registry.security.jwks.keys", this,
+        manager -> manager.jwkSet == null ? 0 : manager.jwkSet.getKeys().size())
+        .description("Signing keys known for the OIDC issuer").register(registry);
+    TimeGauge.builder("registry.security.jwks.staleness", this, TimeUnit.MILLISECONDS,
+        manager -> manager.lastLoad == 0 ? Double.NaN
+            : System.currentTimeMillis() - manager.lastLoad)
+        .description("Time since the signing keys were last loaded").register(registry);
+  }
+
+  private Timer loadTimer(MeterRegistry registry, String outcome) {
+    return Timer.builder("registry.security.jwks.loads").tag("outcome", outcome)
+        .description("Loads of the OIDC discovery document and signing keys")
+        .register(registry);
+  }
+}